@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器
+ *
+ * @Author vita
+ * @Date 2022/12/21 15:10
+ */
+@Configuration
+public class BloomFilterConfig {
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            @Value("${hmdp.bloom.shop-expected:1000000}") long expected) {
+        return new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP, expected, BLOOM_FPP);
+    }
+
+    @Bean
+    public RedisBloomFilter blogBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            @Value("${hmdp.bloom.blog-expected:1000000}") long expected) {
+        return new RedisBloomFilter(stringRedisTemplate, BLOOM_BLOG, expected, BLOOM_FPP);
+    }
+
+    @Bean
+    public RedisBloomFilter userBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            @Value("${hmdp.bloom.user-expected:5000000}") long expected) {
+        return new RedisBloomFilter(stringRedisTemplate, BLOOM_USER, expected, BLOOM_FPP);
+    }
+}
@@ -0,0 +1,153 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.toolkit.support.SFunction;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时加载布隆过滤器，redis中还没有时从数据库生成
+ * 之后定时从redis重新加载本地镜像，补上没有收到新增通知（订阅断开重连期间）的数据
+ *
+ * @Author vita
+ * @Date 2022/12/21 15:20
+ */
+@Slf4j
+@Order(1)
+@Component
+public class BloomFilterInitializer implements ApplicationRunner {
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+    @Resource
+    private RedisBloomFilter blogBloomFilter;
+    @Resource
+    private RedisBloomFilter userBloomFilter;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private CacheClient cacheClient;
+
+    @Value("${hmdp.cache.bloom.reload-minutes:10}")
+    private long reloadMinutes;
+
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public void run(ApplicationArguments args) {
+        // 查询缓存前先经过过滤器
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        cacheClient.registerBloomFilter(CACHE_BLOG_KEY, blogBloomFilter);
+        cacheClient.registerBloomFilter(CACHE_USER_KEY, userBloomFilter);
+        for (String name : new String[]{BLOOM_SHOP, BLOOM_BLOG, BLOOM_USER}) {
+            if (!filterOf(name).load()) {
+                rebuild(name);
+            }
+        }
+        if (reloadMinutes > 0) {
+            reloader.scheduleWithFixedDelay(this::reloadAll, reloadMinutes, reloadMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    private void reloadAll() {
+        for (String name : new String[]{BLOOM_SHOP, BLOOM_BLOG, BLOOM_USER}) {
+            try {
+                filterOf(name).load();
+            } catch (Exception e) {
+                log.warn("重新加载布隆过滤器 {} 失败", name, e);
+            }
+        }
+    }
+
+    /**
+     * 收到新增数据的通知，消息内容为 过滤器名称:id
+     */
+    public void onAdded(String message) {
+        int separator = message.indexOf(':');
+        filterOf(message.substring(0, separator)).onAdded(message.substring(separator + 1));
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        reloader.shutdownNow();
+    }
+
+    /**
+     * 根据数据库重新生成过滤器，误判率升高时手动调用
+     */
+    public void rebuild(String name) {
+        RedisBloomFilter filter = filterOf(name);
+        long begin = System.currentTimeMillis();
+        switch (name) {
+            case BLOOM_SHOP:
+                filter.rebuild(idSource(shopService, Shop::getId), shopService.count());
+                break;
+            case BLOOM_BLOG:
+                filter.rebuild(idSource(blogService, Blog::getId), blogService.count());
+                break;
+            default:
+                filter.rebuild(idSource(userService, User::getId), userService.count());
+        }
+        log.info("布隆过滤器 {} 重建完成，耗时 {} ms", name, System.currentTimeMillis() - begin);
+    }
+
+    public RedisBloomFilter filterOf(String name) {
+        switch (name) {
+            case BLOOM_SHOP:
+                return shopBloomFilter;
+            case BLOOM_BLOG:
+                return blogBloomFilter;
+            case BLOOM_USER:
+                return userBloomFilter;
+            default:
+                throw new IllegalArgumentException("不存在的布隆过滤器：" + name);
+        }
+    }
+
+    /**
+     * 按主键升序分页，只查询id列
+     * select的参数是泛型可变参数，只传了一个列，不存在堆污染
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> RedisBloomFilter.IdSource idSource(IService<T> service, SFunction<T, Long> idColumn) {
+        return (afterId, limit) -> {
+            List<T> list = service.lambdaQuery()
+                    .select(idColumn)
+                    .gt(idColumn, afterId)
+                    .orderByAsc(idColumn)
+                    .last("LIMIT " + limit)
+                    .list();
+            return list.stream().map(idColumn).collect(Collectors.toList());
+        };
+    }
+}
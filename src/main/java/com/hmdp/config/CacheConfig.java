@@ -0,0 +1,92 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.codec.BinaryCacheCodec;
+import com.hmdp.utils.codec.BlogSchema;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
+import com.hmdp.utils.codec.ShopSchema;
+import com.hmdp.utils.codec.UserDTOSchema;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/**
+ * CacheClient使用的redis模板与编解码方式
+ *
+ * @Author vita
+ * @Date 2022/12/23 14:00
+ */
+@Configuration
+public class CacheConfig {
+
+    /**
+     * key为字符串，value为原始字节，由CacheCodec负责编码
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    /**
+     * 默认使用二进制编码，binary编码也能读取之前写入的json数据
+     * 切换回json前需要清空已写入的二进制缓存
+     */
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:binary}") String codec) {
+        if ("json".equals(codec)) {
+            return new JsonCacheCodec();
+        }
+        return new BinaryCacheCodec(new ShopSchema(), new BlogSchema(), new UserDTOSchema());
+    }
+
+    /**
+     * 默认10秒窗口内单节点访问500次视为热点
+     */
+    @Bean(destroyMethod = "shutdown")
+    public HotKeyDetector hotKeyDetector(@Value("${hmdp.cache.hot-key.threshold:500}") int threshold,
+                                         @Value("${hmdp.cache.hot-key.window-seconds:10}") int windowSeconds,
+                                         @Value("${hmdp.cache.hot-key.top-k:20}") int topK) {
+        return new HotKeyDetector(threshold, windowSeconds, 5, 4096, topK);
+    }
+
+    /**
+     * 异步查询缓存使用的lettuce客户端，与RedisTemplate共用ClientResources（事件循环线程）
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient asyncCacheRedisClient(ClientResources clientResources, RedisProperties redisProperties) {
+        RedisURI.Builder builder = RedisURI.Builder
+                .redis(redisProperties.getHost(), redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if (redisProperties.getPassword() != null) {
+            builder.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        if (redisProperties.getTimeout() != null) {
+            builder.withTimeout(redisProperties.getTimeout());
+        }
+        return RedisClient.create(clientResources, builder.build());
+    }
+
+    /**
+     * 单个多路复用连接，所有异步查询共用，不占用连接池
+     */
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, byte[]> asyncCacheConnection(RedisClient asyncCacheRedisClient) {
+        return asyncCacheRedisClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+    }
+}
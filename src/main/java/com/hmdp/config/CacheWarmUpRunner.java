@@ -0,0 +1,197 @@
+package com.hmdp.config;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillShards;
+import com.hmdp.utils.SoldOutFlags;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热缓存
+ * 通过游标流式读取店铺，按批次交给有限的线程并行写入redis（每批一次管道）
+ * 预热期间节点报告为未就绪（/actuator/health/readiness），完成后才开始接收流量
+ *
+ * @Author vita
+ * @Date 2022/12/28 10:30
+ */
+@Slf4j
+@Order(2)
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+    /**
+     * 每批写入的数量
+     */
+    @Value("${hmdp.cache.warm-up.batch-size:500}")
+    private int batchSize;
+    /**
+     * 同时写入redis的批次数
+     */
+    @Value("${hmdp.cache.warm-up.parallelism:4}")
+    private int parallelism;
+    /**
+     * 预热点赞数最高的笔记数量，0为不预热
+     */
+    @Value("${hmdp.cache.warm-up.hot-blogs:200}")
+    private int hotBlogs;
+    /**
+     * 是否补齐redis中缺失的秒杀库存
+     */
+    @Value("${hmdp.cache.warm-up.seckill-stock:false}")
+    private boolean seckillStock;
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        long begin = System.currentTimeMillis();
+        int shops = warmUpShops();
+        int blogs = hotBlogs > 0 ? warmUpHotBlogs() : 0;
+        int stocks = seckillStock ? warmUpSeckillStock() : 0;
+        log.info("缓存预热完成，店铺 {} 条，笔记 {} 条，秒杀库存 {} 条，耗时 {} ms",
+                shops, blogs, stocks, System.currentTimeMillis() - begin);
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    private int warmUpShops() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // 控制同时在途的批次数，写入跟不上时暂停读取游标
+        Semaphore permits = new Semaphore(parallelism);
+        AtomicInteger count = new AtomicInteger();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        try {
+            transactionTemplate.execute(status -> {
+                try (Cursor<Shop> cursor = shopMapper.scanAll()) {
+                    List<Shop> chunk = new ArrayList<>(batchSize);
+                    for (Shop shop : cursor) {
+                        chunk.add(shop);
+                        if (chunk.size() == batchSize) {
+                            submit(executor, permits, chunk, count);
+                            chunk = new ArrayList<>(batchSize);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        submit(executor, permits, chunk, count);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.MINUTES);
+        }
+        return count.get();
+    }
+
+    private void submit(ExecutorService executor, Semaphore permits, List<Shop> chunk, AtomicInteger count) {
+        permits.acquireUninterruptibly();
+        executor.execute(() -> {
+            try {
+                cacheClient.putAll(CACHE_SHOP_KEY,
+                        chunk.stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                        CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                count.addAndGet(chunk.size());
+            } catch (Exception e) {
+                // 单批失败不影响启动，未预热的数据会在访问时加载
+                log.warn("店铺缓存预热失败，本批 {} 条", chunk.size(), e);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private int warmUpHotBlogs() {
+        List<Blog> blogs = blogService.query()
+                .orderByDesc("liked")
+                .last("LIMIT " + hotBlogs)
+                .list();
+        cacheClient.putAll(CACHE_BLOG_KEY,
+                blogs.stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        return blogs.size();
+    }
+
+    /**
+     * 只补齐redis中不存在的库存，已存在的库存以redis为准，秒杀券元数据每次都重新写入
+     */
+    private int warmUpSeckillStock() {
+        List<SeckillVoucher> vouchers = seckillVoucherService.lambdaQuery()
+                .gt(SeckillVoucher::getEndTime, LocalDateTime.now())
+                .list();
+        int count = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            // 元数据以数据库为准，总是覆盖
+            seckillShards.initMeta(voucher.getVoucherId(), voucher.getBeginTime(), voucher.getEndTime(), null);
+            if (seckillShards.shardCount(voucher.getVoucherId()) > 1) {
+                // 分片的库存无法从数据库还原到各个分片
+                continue;
+            }
+            Boolean absent = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_STOCK_KEY + voucher.getVoucherId(), voucher.getStock().toString());
+            if (Boolean.TRUE.equals(absent)) {
+                soldOutFlags.clear(voucher.getVoucherId());
+                count++;
+            }
+        }
+        return count;
+    }
+}
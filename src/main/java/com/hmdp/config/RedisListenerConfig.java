@@ -0,0 +1,63 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.OrderStatuses;
+import com.hmdp.utils.SeckillRateLimits;
+import com.hmdp.utils.SoldOutFlags;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * redis发布订阅的监听配置
+ *
+ * @Author vita
+ * @Date 2022/12/20 10:05
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, CacheClient cacheClient,
+            BloomFilterInitializer bloomFilterInitializer, SoldOutFlags soldOutFlags,
+            SeckillRateLimits seckillRateLimits, OrderStatuses orderStatuses) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 缓存失效通知，消息内容为 发布节点|要删除的key
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 缓存重建完成通知，唤醒本节点上等待该key的请求
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.onRebuilt(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        // 布隆过滤器在其他节点重建完成，重新加载本地镜像
+        container.addMessageListener(
+                (message, pattern) -> bloomFilterInitializer
+                        .filterOf(new String(message.getBody(), StandardCharsets.UTF_8)).load(),
+                new ChannelTopic(BLOOM_RELOAD_CHANNEL));
+        // 其他节点新增了数据，写入本地的布隆过滤器镜像
+        container.addMessageListener(
+                (message, pattern) -> bloomFilterInitializer.onAdded(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_ADD_CHANNEL));
+        // 秒杀券售罄或库存重置
+        container.addMessageListener(
+                (message, pattern) -> soldOutFlags.onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        // 秒杀限流配置已修改
+        container.addMessageListener((message, pattern) -> seckillRateLimits.load(),
+                new ChannelTopic(SECKILL_RATE_CHANNEL));
+        // 订单已创建或创建失败，唤醒本节点上等待订单状态的请求
+        container.addMessageListener(
+                (message, pattern) -> orderStatuses.onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(ORDER_STATUS_CHANNEL));
+        return container;
+    }
+}
@@ -1,7 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -18,6 +20,11 @@ public class WebMvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 管理接口的令牌，从环境变量读取，不写在配置文件中
+     */
+    @Value("${hmdp.admin.token:}")
+    private String adminToken;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -28,8 +35,16 @@ public class WebMvcConfig implements WebMvcConfigurer {
                 "/upload/**",
                 "/blog/hot",
                 "/user/code",
-                "/user/login"
+                "/user/login",
+                "/actuator/**",
+                "/cache/**"
         ).order(1); // 控制执行顺序，数值越大执行的顺序就越靠后
+        // 修改库存、限流配置与缓存运维的管理接口，只校验管理令牌
+        registry.addInterceptor(new AdminInterceptor(adminToken)).addPathPatterns(
+                "/voucher/seckill/*/stock",
+                "/voucher/seckill/rate-limit",
+                "/cache/**"
+        ).order(1);
         // 添加刷新TOKEN的拦截器，访问任何路径都会刷新TOKEN过期时间
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**")
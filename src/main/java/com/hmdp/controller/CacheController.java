@@ -0,0 +1,51 @@
+package com.hmdp.controller;
+
+import com.hmdp.config.BloomFilterInitializer;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存运维接口
+ *
+ * @Author vita
+ * @Date 2022/12/21 16:00
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private BloomFilterInitializer bloomFilterInitializer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 根据数据库重建布隆过滤器
+     * @param name 过滤器名称 shop/blog/user
+     */
+    @PostMapping("/bloom/{name}/rebuild")
+    public Result rebuildBloomFilter(@PathVariable("name") String name) {
+        if (!BLOOM_SHOP.equals(name) && !BLOOM_BLOG.equals(name) && !BLOOM_USER.equals(name)) {
+            return Result.fail("不存在的布隆过滤器");
+        }
+        bloomFilterInitializer.rebuild(name);
+        return Result.ok();
+    }
+
+    /**
+     * 本节点访问次数最多的key，hot为true的已切换为本地缓存
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.topKeys());
+    }
+}
@@ -6,10 +6,12 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -25,6 +27,8 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
 
     /**
      * 根据id查询商铺信息
@@ -32,8 +36,9 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryShopById(id);
+    public CompletableFuture<Result> queryShopById(@PathVariable("id") Long id) {
+        // 异步返回，查询缓存期间不占用tomcat线程
+        return shopService.queryShopByIdAsync(id);
     }
 
     /**
@@ -45,6 +50,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
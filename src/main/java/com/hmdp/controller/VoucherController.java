@@ -4,9 +4,11 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimits;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.Map;
 
 /**
  * <p>
@@ -22,6 +24,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private SeckillRateLimits seckillRateLimits;
 
     /**
      * 新增普通券
@@ -45,6 +49,46 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 补充秒杀券库存
+     * @param id 优惠券id
+     * @param amount 增加的库存数量
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long id, @RequestParam("amount") Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("库存数量必须大于0");
+        }
+        try {
+            voucherService.addSeckillStock(id, amount);
+        } catch (IllegalArgumentException e) {
+            return Result.fail(e.getMessage());
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询秒杀限流配置
+     */
+    @GetMapping("seckill/rate-limit")
+    public Result querySeckillRateLimit() {
+        return Result.ok(seckillRateLimits.config());
+    }
+
+    /**
+     * 修改秒杀限流配置，立即对所有节点生效
+     * @param config stock-multiplier/user-rate/user-burst，小于等于0时不限流
+     */
+    @PutMapping("seckill/rate-limit")
+    public Result updateSeckillRateLimit(@RequestBody Map<String, String> config) {
+        try {
+            seckillRateLimits.update(config);
+        } catch (IllegalArgumentException e) {
+            return Result.fail(e.getMessage());
+        }
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -4,10 +4,14 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -26,8 +30,32 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    /**
+     * 获取秒杀令牌，秒杀开始前一段时间到秒杀结束（或售罄）之间可以获取
+     * 开启秒杀令牌（hmdp.seckill.token.enabled）时，客户端先调用这个接口，下单时把令牌放在请求头seckill-token中
+     */
+    @GetMapping("seckill/{id}/token")
+    public Result seckillToken(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillToken(voucherId);
+    }
+
+    /**
+     * @param token 获取到的秒杀令牌，没有开启秒杀令牌时不需要
+     */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "seckill-token", required = false) String token) {
+        return voucherOrderService.seckillVoucher(voucherId, token);
+    }
+
+    /**
+     * 查询秒杀订单的处理状态 QUEUED/CREATED/FAILED
+     * @param orderId 秒杀返回的订单id
+     * @param wait 订单还在排队时最多等待的秒数，状态变化后立即返回，0为不等待
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Integer wait) {
+        return voucherOrderService.queryOrderStatus(orderId, wait);
     }
 }
@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKey {
+    private String key;
+    /**
+     * 最近一个窗口内的访问次数（估计值）
+     */
+    private Long count;
+    /**
+     * 是否已切换为本地缓存
+     */
+    private Boolean hot;
+}
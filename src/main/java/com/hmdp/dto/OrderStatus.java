@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatus {
+    private Long orderId;
+    private Long voucherId;
+    /**
+     * QUEUED 已抢到，等待创建订单；CREATED 订单已创建；FAILED 订单创建失败
+     */
+    private String status;
+    /**
+     * 失败原因
+     */
+    private String reason;
+}
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,7 @@ public interface IShopService extends IService<Shop> {
 
     Result queryShopById(Long id);
 
+    CompletableFuture<Result> queryShopByIdAsync(Long id);
+
     Result updateShop(Shop shop);
 }
@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -14,7 +17,15 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
-    Result seckillVoucher(Long voucherId);
+    Result seckillToken(Long voucherId);
+
+    Result seckillVoucher(Long voucherId, String token);
+
+    Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Integer waitSeconds);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
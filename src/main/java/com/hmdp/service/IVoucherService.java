@@ -18,4 +18,6 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    void addSeckillStock(Long voucherId, Integer amount);
+
 }
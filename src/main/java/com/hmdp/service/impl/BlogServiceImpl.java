@@ -2,7 +2,6 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
@@ -15,21 +14,28 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -48,6 +54,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private IFollowService followService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisBloomFilter blogBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -57,22 +67,22 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            // 设置用户信息
-            setBlogUser(blog);
-            // 设置是否点赞
-            setBlogLiked(blog);
-        });
+        // 批量设置用户信息
+        setBlogUsers(records);
+        // 批量设置是否点赞
+        setBlogsLiked(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = getById(id);
-        if (blog == null) {
+        // 布隆过滤器在cacheClient中判断，热点笔记会被切换为本地缓存
+        Blog cached = cacheClient.query(CACHE_BLOG_KEY, id, Blog.class, this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
             return Result.fail("笔记不存在");
         }
+        // 缓存中的对象可能被多个请求共享，复制一份再填充用户信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         setBlogUser(blog);
         setBlogLiked(blog);
         return Result.ok(blog);
@@ -97,6 +107,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if (isSuccess) {
                 // 将用户移出点赞集合
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                // 点赞数变化，删除笔记缓存
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }else{
             // 未点赞过，点赞，将笔记的点赞数 + 1
@@ -108,6 +120,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 // 将用户加入点赞集合
                 // 使用时间戳作为score的排序规则
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
 
         }
@@ -124,14 +137,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 得到用户ID列表
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idsStr = StrUtil.join(",", ids);
-        // 查询已排序的用户列表
-        List<User> sortedUserList = userService.lambdaQuery()
-                .in(User::getId, ids)
-                .last("ORDER BY FIELD(id," + idsStr + ")")
-                .list();
-        List<UserDTO> userDTOList = BeanUtil.copyToList(sortedUserList, UserDTO.class);
-        return Result.ok(userDTOList);
+        // 批量查询用户，结果已按ids的顺序排列
+        Map<Long, UserDTO> users = queryUsers(ids);
+        return Result.ok(new ArrayList<>(users.values()));
     }
 
     @Override
@@ -142,6 +150,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess){
             return Result.fail("保存失败");
         }
+        blogBloomFilter.add(blog.getId());
 
         List<Follow> followList = followService.lambdaQuery()
                 .eq(Follow::getFollowUserId, userId)
@@ -184,15 +193,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        String idsStr = StrUtil.join(",", ids);
-        List<Blog> blogList = lambdaQuery()
-                .in(Blog::getId, ids)
-                .last("ORDER BY FIELD(id," + idsStr + ")")
-                .list();
-        for (Blog blog : blogList) {
-            setBlogUser(blog);
-            setBlogLiked(blog);
-        }
+        // 批量查询笔记，结果已按ids的顺序排列
+        Map<Long, Blog> blogs = cacheClient.getMany(CACHE_BLOG_KEY, ids, Blog.class,
+                this::loadBlogs, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        List<Blog> blogList = new ArrayList<>(blogs.values());
+        setBlogUsers(blogList);
+        setBlogsLiked(blogList);
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogList);
         scrollResult.setMinTime(minTime);
@@ -201,6 +207,57 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
+    private Map<Long, Blog> loadBlogs(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity()));
+    }
+
+    /**
+     * 批量查询用户，先一次性查询redis，未命中的再一次性查询数据库
+     */
+    private Map<Long, UserDTO> queryUsers(Collection<Long> ids) {
+        return cacheClient.getMany(CACHE_USER_KEY, ids, UserDTO.class,
+                this::loadUsers, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    private Map<Long, UserDTO> loadUsers(Collection<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
+    }
+
+    private void setBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Map<Long, UserDTO> users = queryUsers(blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 使用管道一次性查询当前用户是否点赞过这些笔记
+     */
+    private void setBlogsLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            return;
+        }
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
+    }
+
     private void setBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
@@ -1,9 +1,7 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.lang.TypeReference;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,18 +9,16 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheStrategy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.lang.reflect.Type;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -40,21 +36,32 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    /**
+     * 店铺缓存使用的策略，可在配置文件中切换
+     */
+    @Value("${hmdp.cache.strategy.shop:MUTEX}")
+    private CacheStrategy shopCacheStrategy;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.registerStrategy(CACHE_SHOP_KEY, shopCacheStrategy);
+    }
 
     @Override
     public Result queryShopById(Long id) {
-        // 缓存穿透 储存空值的解决方案
-        // Shop shop = cachePassThrough(id);
-        // 使用缓存工具类实现
+        // 缓存穿透 储存空值的解决方案，使用缓存工具类实现
         // Shop shop = cacheClient.cachePassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 缓存穿透+缓存击穿 互斥锁的解决方案
-         Shop shop = cacheMutexLock(id);
+        // Shop shop = cacheMutexLock(id);
+        // 使用缓存工具类实现，同一个店铺的并发未命中只会查询一次数据库
+        // Shop shop = cacheClient.cacheMutexLock(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-        // 使用逻辑过期解决热点商品的缓存击穿问题
-        // Shop shop = cacheLogicalExpire(id);
-        // 使用缓存工具类实现
+        // 使用逻辑过期解决热点商品的缓存击穿问题，使用缓存工具类实现
 //        Shop shop = cacheClient.cacheLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 按配置的策略查询（hmdp.cache.strategy.shop），默认为互斥锁方案
+        Shop shop = cacheClient.query(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null){
             return Result.fail("店铺不存在");
         }
@@ -62,6 +69,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 异步查询，不阻塞tomcat线程
+     */
+    @Override
+    public CompletableFuture<Result> queryShopByIdAsync(Long id) {
+        return cacheClient.queryAsync(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .thenApply(shop -> shop == null ? Result.fail("店铺不存在") : Result.ok(shop));
+    }
+
     public void saveShopToRedis(Long id, Long expireTime){
         Shop shop = getById(id);
         try {
@@ -70,69 +86,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        RedisData<Shop> redisData = new RedisData<>();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
-    }
-
-    // 创建重建缓存的线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    private Shop cacheLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(shopJson)){
-            // 缓存为空，代表并未预热此热点商品，直接返回空
-            return null;
-        }
-        // 缓存不为空
-        // 使用泛型实现类型转换
-        RedisData<Shop> redisData = JSONUtil.toBean(shopJson,
-                new TypeReference<RedisData<Shop>>() {},
-                false);
-        Shop shop = redisData.getData();
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if (expireTime.isAfter(LocalDateTime.now())){
-            // 未过期，直接返回数据
-            return shop;
-        }
-
-        // 已过期，需要进行缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
-        // 获取互斥锁
-        boolean flag = tryLock(lockKey);
-        if (flag){
-            // 获取成功，再查询一次缓存，以免缓存已更新
-            String shopJson2 = stringRedisTemplate.opsForValue().get(key);
-            // 检查缓存是否过期
-            RedisData<Shop> redisData2 = JSONUtil.toBean(shopJson2,
-                    new TypeReference<RedisData<Shop>>() {},
-                    false);
-            Shop shop2 = redisData2.getData();
-            LocalDateTime expireTime2 = redisData2.getExpireTime();
-            if (expireTime2.isAfter(LocalDateTime.now())){
-                // 已被更新，直接返回新数据
-                return shop2;
-            }
-
-            // 缓存未被更新，开启新线程进行缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 更新缓存
-                    saveShopToRedis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
-        // 此处要返回已过期的数据
-        // 因为缓存重建是使用新线程进行的，主线程还是要返回过期的商品信息
-        return shop;
+        // 通过缓存工具类写入，编码方式与查询时一致，并通知其他节点丢弃本地缓存
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireTime, TimeUnit.SECONDS);
     }
 
+    /**
+     * 互斥锁方案的原始写法，直接按json读写redis，只用于演示
+     * 实际查询使用缓存工具类，编码方式由hmdp.cache.codec决定，两者不能混用
+     */
     private Shop cacheMutexLock(Long id){
         String key = CACHE_SHOP_KEY + id;
         String shopJson = stringRedisTemplate.opsForValue().get(key);
@@ -190,30 +151,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
-    private Shop cachePassThrough(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(shopJson)){
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 此时已经可以断定redis并没有命中缓存
-        // 如果取出来的是null代表redis里没有这条数据
-        // 但如果取出来的不是null，就代表已经存入过空值，可以直接返回错误信息
-        if (shopJson != null){
-            return null;
-        }
-
-        Shop shop = getById(id);
-        // 不存在，防止缓存穿透问题
-        if (shop == null){
-            // 存入空数据，设置过期时间
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
-    }
-
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         // 直接返回有可能会因为自动拆箱而发生空指针异常，此处直接进行拆箱操作
@@ -231,7 +168,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺ID不能为空");
         }
         updateById(shop);
-        stringRedisTemplate.delete(CACHE_SHOP_KEY +shop.getId());
+        // 删除redis缓存，并广播让所有节点丢弃本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 }
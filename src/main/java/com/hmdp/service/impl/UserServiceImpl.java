@@ -12,6 +12,8 @@ import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -42,6 +44,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisBloomFilter userBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -95,6 +101,20 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        userBloomFilter.add(user.getId());
         return user;
     }
+
+    /**
+     * 修改用户后删除缓存的UserDTO，点赞列表、博客作者的昵称和头像不会在缓存过期前一直是旧值
+     * 修改用户信息要通过这个方法，直接使用lambdaUpdate不会删除缓存
+     */
+    @Override
+    public boolean updateById(User user) {
+        boolean updated = super.updateById(user);
+        if (updated) {
+            cacheClient.delete(CACHE_USER_KEY + user.getId());
+        }
+        return updated;
+    }
 }
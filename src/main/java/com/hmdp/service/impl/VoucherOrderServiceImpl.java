@@ -1,32 +1,83 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderCancellations;
+import com.hmdp.utils.OrderStatuses;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillRateLimits;
+import com.hmdp.utils.SeckillScripts;
+import com.hmdp.utils.SeckillShards;
+import com.hmdp.utils.SeckillStockLeases;
+import com.hmdp.utils.SeckillTokens;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -36,6 +87,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     @Resource
@@ -45,98 +97,616 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private SeckillBuyers seckillBuyers;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+    @Resource
+    private SeckillRateLimits seckillRateLimits;
+    @Resource
+    private OrderStatuses orderStatuses;
+    @Resource
+    private OrderCancellations orderCancellations;
+    @Resource
+    private SeckillTokens seckillTokens;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    /**
+     * 本类的aop代理对象，消费线程通过它调用事务方法
+     * 启动后就要处理stream中遗留的订单，不能等到第一次下单时再从AopContext中获取
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    /**
+     * 消费者名称，同一台机器重启后使用相同的名称，默认为 主机名:端口
+     */
+    @Value("${hmdp.seckill.consumer-name:}")
+    private String consumerName;
+    @Value("${server.port:8080}")
+    private int serverPort;
+    /**
+     * 每批最多处理的订单数量
+     */
+    @Value("${hmdp.seckill.batch-size:100}")
+    private int batchSize;
+    /**
+     * 读到第一条订单后最多再等待多久凑够一批
+     */
+    @Value("${hmdp.seckill.batch-wait-millis:50}")
+    private long batchWaitMillis;
+    /**
+     * 订单处理分区数，默认为cpu核数
+     */
+    @Value("${hmdp.seckill.lanes:0}")
+    private int laneSize;
+    /**
+     * 每个分区最多排队的订单数
+     */
+    @Value("${hmdp.seckill.lane-capacity:1000}")
+    private int laneCapacity;
+    /**
+     * 订单消息投递后超过这个时间仍未确认，视为消费者已宕机，由其他节点认领
+     */
+    @Value("${hmdp.seckill.pending-idle-seconds:30}")
+    private long pendingIdleSeconds;
+    /**
+     * 最多投递次数，超过后转入死信stream，需要人工处理
+     */
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_TAKE_SCRIPT;
 
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT = SeckillScripts.load("seckill.lua", Long.class);
+        SECKILL_SHARD_SCRIPT = SeckillScripts.load("seckill_shard.lua", Long.class);
+        SECKILL_SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SECKILL_SHARD_TAKE_SCRIPT.setResultType(Long.class);
     }
 
-    // 创建单线程的异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 创建阻塞队列
-    private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 准备好aop代理对象
-    private IVoucherOrderService proxy;
+    // 从stream读取订单消息的线程，每个stream一个，读到的订单按用户分发到各个分区
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newCachedThreadPool();
+    // 认领超时未确认消息的线程
+    private static final ScheduledExecutorService PENDING_ORDER_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean running = true;
+    /**
+     * 订单处理分区，同一个用户的订单总是进入同一个分区，按顺序处理，不再需要按用户加锁
+     */
+    private OrderLane[] lanes;
+    /**
+     * 需要消费的订单stream，开启库存分片时包括每个分片的stream
+     */
+    private final List<String> streamKeys = new ArrayList<>();
+    /**
+     * 已分发到本节点分区、还没有处理完的消息（streamKey/id）
+     * 在分区队列中排队时pending list中的空闲时间也会增长，但并没有处理失败，认领时跳过，并刷新空闲时间
+     */
+    private final Set<String> localMessages = ConcurrentHashMap.newKeySet();
+    /**
+     * 认领后分区队列已满、还没有放入分区的消息，只在认领线程中访问
+     */
+    private final Queue<OrderMessage> deferred = new ArrayDeque<>();
 
-    // 初始化时执行
-    @PostConstruct
-    private void init() {
-        // 项目初始化时就开始启动阻塞队列
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    /**
+     * 应用启动完成后开始消费订单消息
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOrderConsumer() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = defaultConsumerName();
+        }
+        streamKeys.add(SECKILL_STREAM_KEY);
+        streamKeys.addAll(seckillShards.streamKeys());
+        streamKeys.forEach(this::createGroupIfAbsent);
+        int laneCount = laneSize > 0 ? laneSize : Runtime.getRuntime().availableProcessors();
+        lanes = new OrderLane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new OrderLane(i);
+            lanes[i].start();
+        }
+        for (String streamKey : streamKeys) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(streamKey));
+        }
+        // 每半个pending-idle-seconds执行一次，本节点排队中的消息在空闲时间达到认领条件前刷新
+        long recoverMillis = Math.max(1, TimeUnit.SECONDS.toMillis(pendingIdleSeconds) / 2);
+        PENDING_ORDER_EXECUTOR.scheduleWithFixedDelay(this::recoverPendingOrders,
+                recoverMillis, recoverMillis, TimeUnit.MILLISECONDS);
+        log.info("订单消费者 {} 已启动，{} 个分区", consumerName, laneCount);
+    }
+
+    @PreDestroy
+    private void stopOrderConsumer() throws InterruptedException {
+        running = false;
+        PENDING_ORDER_EXECUTOR.shutdownNow();
+        SECKILL_ORDER_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.awaitTermination(5, TimeUnit.SECONDS);
+        // 等待各分区处理完已分发的订单，未确认的消息会在下次启动或由其他节点处理
+        if (lanes != null) {
+            for (OrderLane lane : lanes) {
+                lane.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        }
+    }
+
+    private String defaultConsumerName() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        } catch (UnknownHostException e) {
+            return "consumer:" + serverPort;
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream.orders g1 0 MKSTREAM
+     * 从0开始读取，消费组创建之前写入的订单也会被处理
+     */
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP, ReadOffset.from("0"), true));
+        } catch (DataAccessException e) {
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+            // 消费组已存在
+        }
     }
 
     // 线程任务
     private class VoucherOrderHandler implements Runnable {
+        private final String streamKey;
+
+        VoucherOrderHandler(String streamKey) {
+            this.streamKey = streamKey;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 阻塞队列中没有数据的时候会阻塞，直到有数据
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    handleVoucherOrder(voucherOrder);
+                    List<MapRecord<String, Object, Object>> records = readOrderBatch(streamKey);
+                    for (MapRecord<String, Object, Object> record : records) {
+                        OrderMessage message = parse(streamKey, record.getId(), record.getValue());
+                        if (message != null) {
+                            enqueue(message, true);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    if (running) {
+                        log.error("读取订单消息异常", e);
+                        sleepQuietly();
+                    }
                 }
             }
         }
+    }
+
+    /**
+     * 读取一批订单消息，凑够batchSize条或读到第一条后等待batchWaitMillis就返回
+     * 没有消息时最多阻塞2秒
+     */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readOrderBatch(String streamKey) {
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+        Duration block = Duration.ofSeconds(2);
+        long deadline = 0;
+        while (running && batch.size() < batchSize) {
+            // XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_STREAM_GROUP, consumerName),
+                    StreamReadOptions.empty().count(batchSize - batch.size()).block(block),
+                    StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+            );
+            if (records != null) {
+                batch.addAll(records);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (deadline == 0) {
+                deadline = System.currentTimeMillis() + batchWaitMillis;
+            }
+            long remain = deadline - System.currentTimeMillis();
+            if (remain <= 0) {
+                break;
+            }
+            block = Duration.ofMillis(remain);
+        }
+        return batch;
+    }
+
+    /**
+     * 解析订单消息，无法解析的消息转入死信stream，返回null
+     */
+    private OrderMessage parse(String streamKey, RecordId id, Map<?, ?> value) {
+        try {
+            return new OrderMessage(streamKey, id, BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        } catch (Exception e) {
+            // 无法解析的消息重试也不会成功
+            log.error("订单消息 {} 格式错误 {}", id, value, e);
+            moveToDeadLetter(streamKey, id);
+            return null;
+        }
+    }
+
+    /**
+     * 按userId把订单分发到对应的分区
+     * block为true时分区队列已满则阻塞，stream中剩余的消息暂不读取；否则队列已满时返回false
+     * 返回false的消息仍记为本节点排队中，由调用方稍后再放入
+     */
+    private boolean enqueue(OrderMessage message, boolean block) throws InterruptedException {
+        localMessages.add(message.key());
+        int lane = Math.floorMod(Long.hashCode(message.voucherOrder.getUserId()), lanes.length);
+        if (block) {
+            lanes[lane].queue.put(message);
+            return true;
+        }
+        return lanes[lane].queue.offer(message);
+    }
+
+    private static String localKey(String streamKey, RecordId id) {
+        return streamKey + "/" + id.getValue();
+    }
 
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            // 注意：多线程无法用ThreadLocal获取userId
-            Long userId = voucherOrder.getUserId();
+    private static class OrderMessage {
+        private final String streamKey;
+        private final RecordId id;
+        private final VoucherOrder voucherOrder;
 
-            // 使用redisson加锁与解锁
-            RLock lock = redissonClient.getLock("lock:order:" + userId);
-            boolean flag = lock.tryLock();
-            // 加锁成功
-            if (flag) {
+        OrderMessage(String streamKey, RecordId id, VoucherOrder voucherOrder) {
+            this.streamKey = streamKey;
+            this.id = id;
+            this.voucherOrder = voucherOrder;
+        }
+
+        String key() {
+            return localKey(streamKey, id);
+        }
+    }
+
+    /**
+     * 单线程的订单处理分区，每次取出队列中已有的订单（最多batchSize条）批量写入
+     */
+    private class OrderLane extends Thread {
+        private final BlockingQueue<OrderMessage> queue = new ArrayBlockingQueue<>(laneCapacity);
+        private final Timer latency;
+        private final Timer lag;
+
+        OrderLane(int index) {
+            super("seckill-order-lane-" + index);
+            String lane = String.valueOf(index);
+            meterRegistry.gauge("seckill.order.lane.depth", Tags.of("lane", lane), queue, BlockingQueue::size);
+            latency = meterRegistry.timer("seckill.order.lane.latency", "lane", lane);
+            lag = meterRegistry.timer("seckill.order.lag", "lane", lane);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
                 try {
-                    // 注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-                    // 使用提前准备好的代理对象调用方法，保证事务正常
-                    proxy.createVoucherOrder(voucherOrder);
-                } finally {
-                    lock.unlock();
+                    OrderMessage first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    List<OrderMessage> batch = new ArrayList<>(batchSize);
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    long begin = System.nanoTime();
+                    try {
+                        handleOrderBatch(batch);
+                    } finally {
+                        // 处理失败、没有确认的消息由recoverPendingOrders重新认领
+                        batch.forEach(message -> localMessages.remove(message.key()));
+                    }
+                    latency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    seckillAdmission.recordPersisted(batch.size());
+                    // 从lua脚本写入stream到订单入库的时间
+                    long now = System.currentTimeMillis();
+                    for (OrderMessage message : batch) {
+                        lag.record(now - message.id.getTimestamp(), TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    log.error("订单分区 {} 处理异常", getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一批订单在一个事务中写入，提交后一次确认
+     * 失败时（如数据库库存不足、订单已被其他节点写入）改为逐条处理
+     */
+    private void handleOrderBatch(List<OrderMessage> batch) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(batch.size());
+        Map<String, List<RecordId>> ids = new HashMap<>();
+        for (OrderMessage message : batch) {
+            voucherOrders.add(message.voucherOrder);
+            ids.computeIfAbsent(message.streamKey, k -> new ArrayList<>()).add(message.id);
+        }
+        List<VoucherOrder> duplicates;
+        try {
+            duplicates = proxy.createVoucherOrders(voucherOrders);
+        } catch (Exception e) {
+            log.warn("批量创建 {} 个订单失败，改为逐条处理", batch.size(), e);
+            for (OrderMessage message : batch) {
+                handleOrderMessage(message);
+            }
+            return;
+        }
+        if (!duplicates.isEmpty()) {
+            voucherOrders.removeAll(duplicates);
+            duplicates.forEach(o -> orderStatuses.failed(o, "用户已经购买过一次"));
+        }
+        orderStatuses.created(voucherOrders);
+        ids.forEach((streamKey, recordIds) -> acknowledge(streamKey, recordIds.toArray(new RecordId[0])));
+    }
+
+    /**
+     * XACK stream.orders g1 id...，已确认的消息不再需要，直接删除避免stream无限增长
+     */
+    private void acknowledge(String streamKey, RecordId... ids) {
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_STREAM_GROUP, ids);
+        stringRedisTemplate.opsForStream().delete(streamKey, ids);
+    }
+
+    /**
+     * 处理一条订单消息，数据库事务提交后再确认
+     * 处理失败或确认前宕机的消息会留在pending list中，由recoverPendingOrders重新处理
+     * 同一个用户的订单只会在同一个分区中处理，不需要再加锁
+     */
+    private void handleOrderMessage(OrderMessage message) {
+        try {
+            // 注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
+            // 使用代理对象调用方法，保证事务正常
+            Result result = proxy.createVoucherOrder(message.voucherOrder);
+            if (result.getSuccess()) {
+                orderStatuses.created(Collections.singletonList(message.voucherOrder));
+            } else {
+                orderStatuses.failed(message.voucherOrder, result.getErrorMsg());
+            }
+            acknowledge(message.streamKey, message.id);
+        } catch (Exception e) {
+            log.error("处理订单消息 {} 异常", message.id, e);
+        }
+    }
+
+    /**
+     * 认领超时未确认的订单消息（消费者宕机或处理失败），交给对应的分区重新处理
+     * XCLAIM只有在消息空闲时间仍超过minIdle时才会成功，多个节点同时认领时只有一个能拿到
+     * 本节点分区中还在排队的消息不认领，只用XCLAIM JUSTID刷新空闲时间（不增加投递次数），其他节点也不会认领
+     * 认领时分区队列已满不阻塞，消息留到下一次放入
+     * 订单id已写入或用户已下单时不会重复创建订单
+     */
+    private void recoverPendingOrders() {
+        try {
+            while (!deferred.isEmpty() && enqueue(deferred.peek(), false)) {
+                deferred.poll();
+            }
+            for (String streamKey : streamKeys) {
+                recoverPendingOrders(streamKey);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("处理pending订单消息异常", e);
+        }
+    }
+
+    private void recoverPendingOrders(String streamKey) throws InterruptedException {
+        Duration minIdle = Duration.ofSeconds(pendingIdleSeconds);
+        byte[] rawKey = streamKey.getBytes(StandardCharsets.UTF_8);
+        List<RecordId> queued = new ArrayList<>();
+        Range<String> range = Range.unbounded();
+        PendingMessages pendingMessages;
+        do {
+            pendingMessages = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_STREAM_GROUP, range, 100);
+            for (PendingMessage message : pendingMessages) {
+                if (!running) {
+                    return;
+                }
+                RecordId id = message.getId();
+                if (localMessages.contains(localKey(streamKey, id))) {
+                    if (consumerName.equals(message.getConsumerName())) {
+                        queued.add(id);
+                    }
+                    continue;
+                }
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    moveToDeadLetter(streamKey, id);
+                    continue;
+                }
+                // 分区队列已满，不再认领，避免认领后长时间排队
+                if (!deferred.isEmpty()) {
+                    continue;
+                }
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.xClaim(rawKey, SECKILL_STREAM_GROUP, consumerName, minIdle, id));
+                if (claimed == null) {
+                    continue;
                 }
+                for (ByteRecord record : claimed) {
+                    MapRecord<String, String, String> r = record.deserialize(RedisSerializer.string());
+                    OrderMessage orderMessage = parse(streamKey, r.getId(), r.getValue());
+                    if (orderMessage != null && !enqueue(orderMessage, false)) {
+                        deferred.add(orderMessage);
+                    }
+                }
+            }
+            if (pendingMessages.isEmpty()) {
+                break;
             }
+            // 下一页从本页最后一条开始，XPENDING的范围包含起点，重复的一条已在本页处理
+            String lastId = pendingMessages.get(pendingMessages.size() - 1).getIdAsString();
+            range = Range.rightUnbounded(Range.Bound.inclusive(lastId));
+        } while (pendingMessages.size() == 100);
+        if (!queued.isEmpty()) {
+            stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.streamCommands().xClaimJustId(rawKey, SECKILL_STREAM_GROUP, consumerName,
+                            XClaimOptions.minIdle(Duration.ZERO).ids(queued.toArray(new RecordId[0]))));
+        }
+    }
 
+    private void moveToDeadLetter(String streamKey, RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.closed(id.getValue(), id.getValue()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = records.get(0).getValue();
+            stringRedisTemplate.opsForStream().add(SECKILL_STREAM_DLQ_KEY, value);
+            try {
+                orderStatuses.failed(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true), "订单处理失败");
+            } catch (Exception e) {
+                log.error("更新订单消息 {} 的状态失败", id, e);
+            }
+        }
+        acknowledge(streamKey, id);
+        log.error("订单消息 {} {} 处理失败，已转入 {}", streamKey, id, SECKILL_STREAM_DLQ_KEY);
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     @Override
-    public Result seckillVoucher(Long voucherId) {
-        long orderId = redisIdWorker.nextId("order");
+    public Result seckillToken(Long voucherId) {
+        return seckillTokens.issue(voucherId, UserHolder.getUser().getId());
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId, String token) {
         Long userId = UserHolder.getUser().getId();
-        // 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                ListUtil.of(SECKILL_ORDER_KEY, SECKILL_STOCK_KEY),
-                voucherId.toString(),
-                String.valueOf(orderId),
-                userId.toString()
-        );
-        int r = result.intValue();
+        // 没有秒杀令牌的请求在本地拒绝
+        if (!seckillTokens.verify(voucherId, userId, token)) {
+            return Result.fail("请先获取秒杀资格");
+        }
+        // 已经售罄，直接返回，不再生成订单id和执行lua脚本
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 订单处理跟不上时按比例拒绝，不再扣库存，避免订单长时间排队
+        if (!seckillAdmission.admit()) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        long orderId = redisIdWorker.nextId("order");
+        int shardCount = seckillShards.shardCount(voucherId);
+        boolean leased = shardCount == 1 && seckillStockLeases.enabled();
+        int r;
+        if (shardCount > 1) {
+            r = seckillSharded(voucherId, orderId, userId, shardCount);
+            if (r == 0) {
+                // 订单状态与分片不在同一个slot，单独写入
+                orderStatuses.queued(orderId, userId, voucherId);
+            }
+        } else if (leased) {
+            // 在本节点租到的库存中卖出，订单稍后批量写入stream
+            r = seckillStockLeases.sell(voucherId, userId, orderId);
+        } else {
+            // 执行lua脚本，成功时脚本会把订单写入stream
+            String[] rate = seckillRateLimits.args();
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    ListUtil.of(SECKILL_ORDER_KEY, SECKILL_STOCK_KEY, SECKILL_STREAM_KEY, SECKILL_META_KEY, SECKILL_RATE_KEY,
+                            ORDER_STATUS_KEY),
+                    voucherId.toString(),
+                    String.valueOf(orderId),
+                    userId.toString(),
+                    rate[0],
+                    rate[1],
+                    rate[2],
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL))
+            );
+            r = result.intValue();
+        }
         // 返回0代表成功，不为0代表失败
+        if (r == 5 || r == 6) {
+            seckillRateLimits.recordShed(r);
+            return Result.fail("请求过于频繁，请稍后再试");
+        }
+        if (r == 3) {
+            return Result.fail("秒杀还未开始");
+        }
+        if (r == 4) {
+            return Result.fail("秒杀已经结束");
+        }
+        if (r == 1) {
+            if (leased) {
+                soldOutFlags.markSoldOutLocally(voucherId);
+            } else {
+                soldOutFlags.markSoldOut(voucherId);
+            }
+            return Result.fail("库存不足");
+        }
         if (r != 0) {
-            return r == 1 ? Result.fail("库存不足") : Result.fail("重复下单");
+            return Result.fail("重复下单");
         }
 
-        // 异步提交部分
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(userId);
-        voucherOrder.setVoucherId(voucherId);
-        // 放入阻塞队列
-        orderTasks.add(voucherOrder);
-        // 提前保存aop代理对象，保证事务正常使用
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 返回订单ID，拟定下单成功
+        // 返回订单ID，拟定下单成功，订单由消费线程异步创建
         return Result.ok(orderId);
     }
 
+    /**
+     * 库存分片模式
+     * 先在用户的主分片上判断是否下过单并扣库存，主分片库存不足时依次尝试后面的分片
+     * 每个脚本只访问同一个slot中的key，全部分片都不足时移除主分片中记录的用户
+     */
+    private int seckillSharded(Long voucherId, long orderId, Long userId, int shardCount) {
+        int home = seckillShards.homeShard(userId, shardCount);
+        String[] rate = seckillRateLimits.args();
+        String[] args = {voucherId.toString(), String.valueOf(orderId), userId.toString(), rate[0], rate[1], rate[2]};
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                ListUtil.of(SeckillShards.orderKey(voucherId, home), SeckillShards.stockKey(voucherId, home),
+                        SeckillShards.streamKey(home), SeckillShards.metaKey(voucherId, home),
+                        SeckillShards.rateKey(voucherId, home), SeckillShards.rateKey(voucherId, userId, home)),
+                (Object[]) args
+        );
+        if (result.intValue() != 1) {
+            return result.intValue();
+        }
+        for (int i = 1; i < shardCount; i++) {
+            int shard = (home + i) % shardCount;
+            Long taken = stringRedisTemplate.execute(
+                    SECKILL_SHARD_TAKE_SCRIPT,
+                    ListUtil.of(SeckillShards.stockKey(voucherId, shard), SeckillShards.streamKey(shard)),
+                    (Object[]) args
+            );
+            if (taken.intValue() == 0) {
+                return 0;
+            }
+        }
+        seckillBuyers.remove(voucherId, userId);
+        return 1;
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Integer waitSeconds) {
+        // 最多等待30秒
+        long wait = Math.min(Math.max(waitSeconds == null ? 0 : waitSeconds, 0), 30);
+        return orderStatuses.await(orderId, UserHolder.getUser().getId(), TimeUnit.SECONDS.toMillis(wait));
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
@@ -185,28 +755,146 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 交给事务控制的类必须要被public修饰
      */
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Result createVoucherOrder(VoucherOrder voucherOrder) {
+        // 重复投递的消息，订单已经写入（可能已经超时取消）
+        if (getById(voucherOrder.getId()) != null) {
+            return Result.ok(voucherOrder.getId());
+        }
         // 注意：多线程无法用ThreadLocal获取userId
         Long userId = voucherOrder.getUserId();
         Integer count = lambdaQuery()
                 .eq(VoucherOrder::getUserId, userId)
                 .eq(VoucherOrder::getVoucherId, voucherOrder.getVoucherId())
+                // 超时取消的订单不算
+                .ne(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
                 .count();
-        // 没有下过单
-        if (count == 0) {
-            // 减少库存
+        // 已经下过单
+        if (count > 0) {
+            return Result.fail("用户已经购买过一次");
+        }
+        // 减少库存
+        boolean flag = seckillVoucherService.lambdaUpdate()
+                .setSql("stock = stock - 1")
+                .eq(SeckillVoucher::getVoucherId, voucherOrder.getVoucherId())
+                // 乐观锁错误率高，舍弃乐观锁方案
+                // .eq(SeckillVoucher::getStock, voucher.getStock())
+                // 借助数据库行锁解决超卖问题
+                .gt(SeckillVoucher::getStock, 0) // where stock > 0
+                .update();
+        // 库存操作失败
+        if (!flag) {
+            return Result.fail("库存不足");
+        }
+        save(voucherOrder);
+        orderCancellations.schedule(Collections.singletonList(voucherOrder));
+        return Result.ok(voucherOrder.getId());
+    }
+
+    /**
+     * 批量创建订单，一条insert写入所有订单，每个优惠券只扣减一次库存
+     * 去掉重复投递、已经写入过的订单；lua脚本的一人一单在对账重新投递、超时取消后再次购买等情况下
+     * 不能保证stream中同一个用户只有一个订单，这里与createVoucherOrder一样按 用户+优惠券 再检查一次：
+     * 数据库中已有未取消的订单，或同一批中已有该用户的订单时不再写入
+     * 同一个用户的订单在本节点只由同一个分区处理，检查与写入之间不会有本节点的其他写入
+     * 数据库库存不足时抛出异常回滚整批，由调用方逐条处理
+     * @return 因用户已经下过单而没有写入的订单
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, VoucherOrder> orders = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orders.putIfAbsent(voucherOrder.getId(), voucherOrder);
+        }
+        lambdaQuery()
+                .select(VoucherOrder::getId)
+                .in(VoucherOrder::getId, orders.keySet())
+                .list()
+                .forEach(o -> orders.remove(o.getId()));
+        if (orders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 用户+优惠券 已经有未取消的订单
+        Set<String> bought = new HashSet<>();
+        lambdaQuery()
+                .select(VoucherOrder::getUserId, VoucherOrder::getVoucherId)
+                .in(VoucherOrder::getUserId, orders.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet()))
+                .in(VoucherOrder::getVoucherId, orders.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet()))
+                .ne(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
+                .list()
+                .forEach(o -> bought.add(o.getUserId() + ":" + o.getVoucherId()));
+        List<VoucherOrder> duplicates = new ArrayList<>();
+        orders.values().removeIf(o -> {
+            // add返回false说明数据库或本批中已有
+            boolean duplicate = !bought.add(o.getUserId() + ":" + o.getVoucherId());
+            if (duplicate) {
+                duplicates.add(o);
+            }
+            return duplicate;
+        });
+        if (orders.isEmpty()) {
+            return duplicates;
+        }
+        // 统计每个优惠券的订单数，按id顺序扣减，多个节点同时扣减时加行锁的顺序一致，避免死锁
+        Map<Long, Integer> counts = new TreeMap<>();
+        for (VoucherOrder voucherOrder : orders.values()) {
+            counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
             boolean flag = seckillVoucherService.lambdaUpdate()
-                    .setSql("stock = stock - 1")
-                    .eq(SeckillVoucher::getVoucherId, voucherOrder.getVoucherId())
-                    // 乐观锁错误率高，舍弃乐观锁方案
-                    // .eq(SeckillVoucher::getStock, voucher.getStock())
-                    // 借助数据库行锁解决超卖问题
-                    .gt(SeckillVoucher::getStock, 0) // where stock > 0
+                    .setSql("stock = stock - " + entry.getValue())
+                    .eq(SeckillVoucher::getVoucherId, entry.getKey())
+                    .ge(SeckillVoucher::getStock, entry.getValue())
                     .update();
-            // 库存操作成功
-            if (flag) {
-                save(voucherOrder);
+            if (!flag) {
+                throw new IllegalStateException("优惠券 " + entry.getKey() + " 库存不足");
+            }
+        }
+        List<VoucherOrder> inserted = new ArrayList<>(orders.values());
+        getBaseMapper().insertBatch(inserted);
+        orderCancellations.schedule(inserted);
+        return duplicates;
+    }
+
+    /**
+     * 取消超时未支付的订单，归还数据库库存
+     * 订单加行锁读取，与支付修改订单状态互斥；按id顺序扣减库存，与创建订单加锁的顺序一致
+     * @return 已取消的订单，包括之前已经取消、redis库存还没有归还的，其他状态的订单不处理
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        List<VoucherOrder> voucherOrders = lambdaQuery()
+                .select(VoucherOrder::getId, VoucherOrder::getUserId, VoucherOrder::getVoucherId, VoucherOrder::getStatus)
+                .in(VoucherOrder::getId, orderIds)
+                .orderByAsc(VoucherOrder::getId)
+                .last("for update")
+                .list();
+        List<VoucherOrder> cancelled = new ArrayList<>();
+        List<Long> unpaid = new ArrayList<>();
+        Map<Long, Integer> counts = new TreeMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (voucherOrder.getStatus() == VoucherOrder.STATUS_UNPAID) {
+                unpaid.add(voucherOrder.getId());
+                counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+            } else if (voucherOrder.getStatus() != VoucherOrder.STATUS_CANCELLED) {
+                continue;
             }
+            cancelled.add(voucherOrder.setStatus(VoucherOrder.STATUS_CANCELLED));
+        }
+        if (unpaid.isEmpty()) {
+            return cancelled;
+        }
+        lambdaUpdate()
+                .set(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
+                .in(VoucherOrder::getId, unpaid)
+                .update();
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            seckillVoucherService.lambdaUpdate()
+                    .setSql("stock = stock + " + entry.getValue())
+                    .eq(SeckillVoucher::getVoucherId, entry.getKey())
+                    .update();
         }
+        return cancelled;
     }
 }
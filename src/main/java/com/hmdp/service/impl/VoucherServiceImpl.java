@@ -10,6 +10,9 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillShards;
+import com.hmdp.utils.SoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -19,8 +22,6 @@ import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -36,6 +37,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private SeckillBuyers seckillBuyers;
 
 
     @Override
@@ -59,8 +66,30 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 将库存信息存入到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 将库存信息存入到redis中，开启库存分片时拆分到各个分片
+        seckillShards.initStock(voucher.getId(), voucher.getStock());
+        // 根据用户id的分布选择已下单用户的存储方式
+        SeckillBuyers.Store buyers = seckillBuyers.choose(voucher.getStock(), seckillShards.shardCount(voucher.getId()));
+        seckillShards.initMeta(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), buyers);
+        // id可能是之前删除过的券，清除残留的售罄标记
+        soldOutFlags.clear(voucher.getId());
+    }
+
+    @Override
+    @Transactional
+    public void addSeckillStock(Long voucherId, Integer amount) {
+        boolean success = seckillVoucherService.lambdaUpdate()
+                .setSql("stock = stock + " + amount)
+                .eq(SeckillVoucher::getVoucherId, voucherId)
+                .update();
+        if (!success) {
+            throw new IllegalArgumentException("秒杀券不存在");
+        }
+        // 补充redis中的库存，并清除各节点的售罄标记
+        seckillShards.addStock(voucherId, amount);
+        soldOutFlags.clear(voucherId);
+        // chunk方式的桶数在创建时按库存确定，补充库存后不会调整
+        seckillBuyers.checkCapacity(voucherId, seckillVoucherService.getById(voucherId).getStock());
     }
 
 }
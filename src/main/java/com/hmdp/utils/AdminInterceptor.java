@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.http.HttpStatus;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 管理接口拦截器，请求头admin-token与配置的管理令牌一致才放行
+ * 普通用户登录后也不能修改库存、限流配置或重建布隆过滤器；没有配置管理令牌时管理接口全部拒绝
+ *
+ * @Author vita
+ * @Date 2023/01/17 10:00
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final byte[] token;
+
+    public AdminInterceptor(String token) {
+        this.token = StrUtil.isBlank(token) ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String header = request.getHeader("admin-token");
+        if (token == null || header == null
+                || !MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(HttpStatus.HTTP_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+}
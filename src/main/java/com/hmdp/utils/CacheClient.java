@@ -1,18 +1,50 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.util.ArrayUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.IdUtil;
+import com.hmdp.utils.codec.CacheCodec;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -22,23 +54,312 @@ import static com.hmdp.utils.RedisConstants.*;
  * @Author vita
  * @Date 2022/11/30 16:12
  */
+@Slf4j
 @Component
 public class CacheClient {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 缓存数据使用字节数组存取，编码方式由cacheCodec决定
+     */
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private CacheCodec cacheCodec;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+    /**
+     * 异步查询使用的多路复用连接
+     */
+    @Resource
+    private StatefulRedisConnection<String, byte[]> asyncCacheConnection;
+
+    @Value("${hmdp.cache.async.db-threads:20}")
+    private int dbThreads;
+    @Value("${hmdp.cache.async.db-queue-capacity:1000}")
+    private int dbQueueCapacity;
+    /**
+     * 异步查询未命中时查询数据库的线程池，排队已满时直接拒绝，
+     * 不能在lettuce的事件循环线程上查询数据库
+     */
+    private ExecutorService dbExecutor;
+
+    /**
+     * 缓存空值时写入的数据
+     */
+    private static final byte[] NULL_VALUE = new byte[0];
+    private static final byte[] INVALIDATE_CHANNEL_BYTES = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 本节点的标识，失效消息带上发布者，收到自己发布的消息时不再重复删除
+     */
+    private final String nodeId = IdUtil.fastSimpleUUID();
+
+    /**
+     * 本地一级缓存，按容量LRU淘汰，同时每条数据最多存活CACHE_LOCAL_TTL秒
+     * 存放的是已经反序列化好的对象，命中时既不用访问redis也不用再解码
+     */
+    private final Cache<String, Object> localCache =
+            CacheUtil.newLRUCache(CACHE_LOCAL_SIZE, TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL));
+
+    /**
+     * 热点key的本地缓存，使用逻辑过期：过期后仍返回旧数据，由一个线程在后台刷新
+     * 热点key降温后移除
+     */
+    private final Map<String, RedisData<Object>> hotCache = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        hotKeyDetector.setDemotionListener(hotCache::remove);
+        meterRegistry.gauge("cache.hot.keys", hotKeyDetector, HotKeyDetector::hotKeyCount);
+        AtomicInteger threadNumber = new AtomicInteger();
+        dbExecutor = new ThreadPoolExecutor(dbThreads, dbThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(dbQueueCapacity),
+                r -> new Thread(r, "cache-db-" + threadNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        dbExecutor.shutdown();
+    }
+
+    /**
+     * 各个key前缀对应的布隆过滤器，查询redis和数据库之前先过滤掉一定不存在的id
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value), time, timeUnit);
+        // 本节点的一级缓存可能还是旧值，直接丢弃，并通知其他节点
+        invalidate(key);
+    }
+
+    /**
+     * 缓存空值，防止缓存穿透
+     */
+    private void setNull(String key) {
+        cacheRedisTemplate.opsForValue().set(key, NULL_VALUE, CACHE_NULL_TTL, TimeUnit.MINUTES);
+        invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit){
-        RedisData<Object> redisData = new RedisData<>();
-        redisData.setData(value);
+        setWithLogicalExpire(key, value, time, timeUnit, 0L);
+    }
+
+    /**
+     * @param rebuildMillis 本次查询数据库的耗时，提前刷新策略使用
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit, long rebuildMillis){
         // 设置逻辑过期时间为time秒后
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        long expireMillis = System.currentTimeMillis() + timeUnit.toMillis(time);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encodeLogical(value, expireMillis, rebuildMillis));
+        invalidate(key);
+    }
+
+    /**
+     * 批量写入缓存，预热时使用
+     * 按key前缀登记的策略选择普通过期或逻辑过期，通过一次管道写入；
+     * 过期时间加上最多10%的随机值，避免同一批数据同时过期
+     */
+    public <ID> void putAll(String keyPrefix, Map<ID, ?> values, Long time, TimeUnit timeUnit) {
+        CacheStrategy strategy = strategyOf(keyPrefix);
+        boolean logical = strategy == CacheStrategy.LOGICAL_EXPIRE || strategy == CacheStrategy.EARLY_REFRESH;
+        long ttlMillis = timeUnit.toMillis(time);
+        long now = System.currentTimeMillis();
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<ID, ?> entry : values.entrySet()) {
+                String key = keyPrefix + entry.getKey();
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                long jittered = ttlMillis + ThreadLocalRandom.current().nextLong(ttlMillis / 10 + 1);
+                if (logical) {
+                    connection.set(rawKey, cacheCodec.encodeLogical(entry.getValue(), now + jittered));
+                } else {
+                    connection.set(rawKey, cacheCodec.encode(entry.getValue()),
+                            Expiration.milliseconds(jittered), RedisStringCommands.SetOption.upsert());
+                }
+                connection.publish(INVALIDATE_CHANNEL_BYTES, invalidation(key));
+            }
+            return null;
+        });
+        for (ID id : values.keySet()) {
+            removeLocal(keyPrefix + id);
+        }
+    }
+
+    /**
+     * 查询一级缓存，类型不匹配时视为未命中
+     */
+    private <R> R getLocal(String key, Class<R> type) {
+        Object value = localCache.get(key, false);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    private void putLocal(String key, Object value) {
+        if (value != null) {
+            localCache.put(key, value);
+        }
+    }
+
+    private void removeLocal(String key) {
+        localCache.remove(key);
+        hotCache.remove(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点丢弃各自的一级缓存
+     * 数据更新时使用，应在更新数据库之后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(key);
+    }
+
+    /**
+     * 写入或删除redis中的缓存后调用，丢弃本节点的一级缓存，并通知其他节点丢弃
+     * 消息内容为 节点标识|key
+     */
+    private void invalidate(String key) {
+        removeLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + "|" + key);
+    }
+
+    private byte[] invalidation(String key) {
+        return (nodeId + "|" + key).getBytes(StandardCharsets.UTF_8);
+    }
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    /**
+     * 收到失效消息时调用，自己发布的消息在发布前已经处理过
+     */
+    public void evictLocal(String message) {
+        int separator = message.indexOf('|');
+        if (separator >= 0 && nodeId.equals(message.substring(0, separator))) {
+            return;
+        }
+        removeLocal(message.substring(separator + 1));
+    }
+
+    /**
+     * 各个key前缀使用的缓存策略，没有登记的前缀使用PASS_THROUGH
+     */
+    private final Map<String, CacheStrategy> strategies = new ConcurrentHashMap<>();
+
+    public void registerStrategy(String keyPrefix, CacheStrategy strategy) {
+        strategies.put(keyPrefix, strategy);
+    }
+
+    public CacheStrategy strategyOf(String keyPrefix) {
+        return strategies.getOrDefault(keyPrefix, CacheStrategy.PASS_THROUGH);
+    }
+
+    /**
+     * 按key前缀登记的策略查询缓存
+     * 访问次数超过阈值的热点key改为本节点缓存+逻辑过期，不再每次访问redis
+     */
+    public <R, ID> R query(
+            String keyPrefix,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        if (hotKeyDetector.record(key)) {
+            return cacheHotKey(keyPrefix, key, id, type, dbFallback, time, timeUnit);
+        }
+        return queryByStrategy(keyPrefix, id, type, dbFallback, time, timeUnit);
+    }
+
+    private <R, ID> R queryByStrategy(
+            String keyPrefix,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        switch (strategyOf(keyPrefix)) {
+            case MUTEX:
+                return cacheMutexLock(keyPrefix, id, type, dbFallback, time, timeUnit);
+            case LOGICAL_EXPIRE:
+                return cacheLogicalExpire(keyPrefix, id, type, dbFallback, time, timeUnit);
+            case EARLY_REFRESH:
+                return cacheEarlyRefresh(keyPrefix, id, type, dbFallback, time, timeUnit);
+            default:
+                return cachePassThrough(keyPrefix, id, type, dbFallback, time, timeUnit);
+        }
+    }
+
+    /**
+     * 热点key
+     * 本地数据逻辑过期后直接返回旧数据，同一个key只有一个线程按原策略重新查询
+     * 数据更新时仍会通过失效广播删除本地数据
+     */
+    private <R, ID> R cacheHotKey(
+            String keyPrefix,
+            String key,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        R hot = getHot(keyPrefix, key, id, type, dbFallback, time, timeUnit);
+        return hot != null ? hot : loadHot(keyPrefix, key, id, type, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * 读取热点key的本地数据，逻辑过期后提交后台刷新并返回旧数据
+     */
+    private <R, ID> R getHot(
+            String keyPrefix,
+            String key,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        RedisData<Object> hot = hotCache.get(key);
+        if (hot == null || !type.isInstance(hot.getData())) {
+            return null;
+        }
+        if (hot.getExpireTime().isBefore(LocalDateTime.now())) {
+            // 只刷新本节点的数据，与redis重建使用不同的去重key
+            rebuildScheduler.submit("local:" + key,
+                    () -> loadHot(keyPrefix, key, id, type, dbFallback, time, timeUnit));
+        }
+        return type.cast(hot.getData());
+    }
+
+    private void putHot(String key, Object value) {
+        if (value != null && hotKeyDetector.isHot(key)) {
+            RedisData<Object> hot = new RedisData<>();
+            hot.setData(value);
+            hot.setExpireTime(LocalDateTime.now().plusSeconds(CACHE_HOT_KEY_LOCAL_TTL));
+            hotCache.put(key, hot);
+        }
+    }
+
+    private <R, ID> R loadHot(
+            String keyPrefix,
+            String key,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        // 跳过一级缓存，直接按原策略查询redis
+        localCache.remove(key);
+        R r = queryByStrategy(keyPrefix, id, type, dbFallback, time, timeUnit);
+        putHot(key, r);
+        return r;
     }
 
     /**
@@ -51,15 +372,26 @@ public class CacheClient {
             Function<ID, R> dbFallBack,
             Long time, TimeUnit timeUnit){
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(json)){
-            // 将json转换为指定type
-            return JSONUtil.toBean(json, type);
+        // 先查本地一级缓存
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        // 布隆过滤器判断不存在，不再查询redis和数据库，也不需要缓存空值
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (ArrayUtil.isNotEmpty(bytes)){
+            // 将数据转换为指定type
+            R r = cacheCodec.decode(bytes, type);
+            putLocal(key, r);
+            return r;
         }
         // 此时已经可以断定redis并没有命中缓存
         // 如果取出来的是null代表redis里没有这条数据
         // 但如果取出来的不是null，就代表已经存入过空值，可以直接返回错误信息
-        if (json != null){ // 同 "".equals(json)
+        if (bytes != null){ // 同 bytes.length == 0
             return null;
         }
         // 调用用户传过来的查询数据库的方法
@@ -67,20 +399,258 @@ public class CacheClient {
         // 不存在，防止缓存穿透问题
         if (r == null){
             // 存入空数据，设置过期时间
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
         // 调用已有方法
         this.set(key, r, time, timeUnit);
+        putLocal(key, r);
         return r;
     }
 
     /**
-     * 缓存击穿
+     * 批量查询，缓存穿透方案
+     * 一次MGET查询所有缓存，未命中的id一次性交给batchDbFallback查询数据库，
+     * 查询结果和不存在的id（空值）通过一次管道写回redis
+     * 返回结果按ids的顺序排列，不存在的id不会出现在结果中
+     * 注意：批量查询的结果通常会被调用方修改，因此不经过本地一级缓存
      */
-    // 创建重建缓存的线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    public <R, ID> Map<ID, R> getMany(
+            String keyPrefix,
+            Collection<ID> ids,
+            Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> batchDbFallback,
+            Long time, TimeUnit timeUnit) {
+        // 去重，并先用布隆过滤器去掉一定不存在的id
+        List<ID> candidates = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (mightExist(keyPrefix, id)) {
+                candidates.add(id);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> keys = new ArrayList<>(candidates.size());
+        for (ID id : candidates) {
+            keys.add(keyPrefix + id);
+        }
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
 
+        Map<ID, R> hits = new HashMap<>(candidates.size() * 2);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (ArrayUtil.isNotEmpty(bytes)) {
+                hits.put(candidates.get(i), cacheCodec.decode(bytes, type));
+            } else if (bytes == null) {
+                misses.add(candidates.get(i));
+            }
+            // 空数组代表已缓存的空值，直接跳过
+        }
+
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = batchDbFallback.apply(misses);
+            hits.putAll(loaded);
+            Expiration ttl = Expiration.from(time, timeUnit);
+            Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : misses) {
+                    byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        // 不存在，防止缓存穿透问题
+                        connection.set(rawKey, NULL_VALUE, nullTtl, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.set(rawKey, cacheCodec.encode(r), ttl, RedisStringCommands.SetOption.upsert());
+                    }
+                    connection.publish(INVALIDATE_CHANNEL_BYTES, invalidation(keyPrefix + id));
+                }
+                return null;
+            });
+        }
+
+        Map<ID, R> result = new LinkedHashMap<>(candidates.size() * 2);
+        for (ID id : candidates) {
+            R r = hits.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 本节点正在进行的缓存重建，同一个key的并发未命中共享同一个结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightCalls = new ConcurrentHashMap<>();
+    /**
+     * 等待其他节点重建完成通知的请求
+     */
+    private final Map<String, CompletableFuture<Void>> rebuiltWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存穿透+缓存击穿 互斥锁方案
+     * 同一节点上只有一个线程去获取redis互斥锁并查询数据库，其余线程直接等待它的结果
+     * 没有抢到锁的节点订阅重建完成的通知，而不是循环睡眠重试
+     */
+    public <R, ID> R cacheMutexLock(
+            String keyPrefix,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        Object cached = readCache(key, type);
+        if (cached != MISS) {
+            // 命中数据或空值
+            return type.cast(cached);
+        }
+
+        return singleflight(key, type, () -> rebuildWithMutex(key, id, type, dbFallback, time, timeUnit));
+    }
+
+    /**
+     * readCache在redis中没有这个key时的返回值
+     */
+    private static final Object MISS = new Object();
+
+    /**
+     * 读取redis缓存，命中数据时放入一级缓存并返回，命中空值返回null，key不存在返回MISS
+     */
+    private <R> Object readCache(String key, Class<R> type) {
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return MISS;
+        }
+        if (bytes.length == 0) {
+            return null;
+        }
+        R r = cacheCodec.decode(bytes, type);
+        putLocal(key, r);
+        return r;
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行loader，其余线程等待它的结果
+     */
+    private <R> R singleflight(String key, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightCalls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            // 已经有线程在重建，等待它的结果即可
+            return type.cast(await(inFlight));
+        }
+        try {
+            R r = loader.get();
+            call.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightCalls.remove(key, call);
+        }
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String key,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        String lockKey = LOCK_CACHE_KEY + key;
+        while (true) {
+            // 先登记等待者再去抢锁，保证不会错过锁释放时发出的通知
+            CompletableFuture<Void> rebuilt = new CompletableFuture<>();
+            rebuiltWaiters.put(key, rebuilt);
+            try {
+                if (tryLock(lockKey)) {
+                    boolean rebuilding = false;
+                    try {
+                        // 获取到锁，再查询一次缓存，以免已被其他节点重建
+                        Object cached = readCache(key, type);
+                        if (cached != MISS) {
+                            return type.cast(cached);
+                        }
+                        rebuilding = true;
+                        R r = dbFallback.apply(id);
+                        if (r == null) {
+                            setNull(key);
+                            return null;
+                        }
+                        this.set(key, r, time, timeUnit);
+                        putLocal(key, r);
+                        return r;
+                    } finally {
+                        unLock(lockKey);
+                        // 只有真正查询了数据库的节点才唤醒其他节点上等待的请求，
+                        // 拿到锁后发现已被重建的节点不再通知，避免等待者之间互相唤醒
+                        if (rebuilding) {
+                            stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                        }
+                    }
+                }
+                // 其他节点正在重建，查一次缓存，没有则等待通知
+                Object cached = readCache(key, type);
+                if (cached != MISS) {
+                    return type.cast(cached);
+                }
+                // 最多等待锁的过期时间，持锁节点宕机时锁过期后重新抢锁
+                rebuilt.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+                // 收到通知后直接读取重建的结果，只有重建失败（仍不存在）时才重新抢锁
+                cached = readCache(key, type);
+                if (cached != MISS) {
+                    return type.cast(cached);
+                }
+            } catch (TimeoutException e) {
+                // 等待超时，重新抢锁
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // 通知只会正常完成，不会走到这里
+                throw new RuntimeException(e.getCause());
+            } finally {
+                rebuiltWaiters.remove(key, rebuilt);
+            }
+        }
+    }
+
+    private Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待缓存重建超时", e);
+        }
+    }
+
+    /**
+     * 收到缓存重建完成的通知时调用
+     */
+    public void onRebuilt(String key) {
+        CompletableFuture<Void> waiter = rebuiltWaiters.get(key);
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+    }
+
+    /**
+     * 缓存击穿
+     */
     public <R, ID> R cacheLogicalExpire(
             String keyPrefix,
             ID id,
@@ -88,55 +658,266 @@ public class CacheClient {
             Function<ID, R> dbFallback,
             Long time, TimeUnit timeUnit) {
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(json)) {
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (ArrayUtil.isEmpty(bytes)) {
             // 缓存为空，代表并未预热此热点商品，直接返回空
             return null;
         }
         // 缓存不为空
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        RedisData<R> redisData = cacheCodec.decodeLogical(bytes, type);
+        R r = redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 未过期，直接返回数据
+            // 未过期，放入一级缓存，但本地存活时间不能超过逻辑过期时间
+            long remain = Duration.between(LocalDateTime.now(), expireTime).toMillis();
+            localCache.put(key, r, Math.min(remain, TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL)));
             return r;
         }
 
-        // 已过期，需要进行缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
+        // 已过期，需要进行缓存重建，与其他策略使用相同的锁
+        String lockKey = LOCK_CACHE_KEY + key;
         // 获取互斥锁
         boolean flag = tryLock(lockKey);
         if (flag) {
             // 获取成功，再查询一次缓存，以免缓存已更新
-            String json2 = stringRedisTemplate.opsForValue().get(key);
+            byte[] bytes2 = cacheRedisTemplate.opsForValue().get(key);
+            if (ArrayUtil.isEmpty(bytes2)) {
+                // 拿锁期间缓存被删除（数据更新），本次仍返回读到的旧数据，不再重建
+                unLock(lockKey);
+                return r;
+            }
             // 检查缓存是否过期
-            RedisData redisData2 = JSONUtil.toBean(json2, RedisData.class);
-            R r2 = JSONUtil.toBean((JSONObject) redisData2.getData(), type);
+            RedisData<R> redisData2 = cacheCodec.decodeLogical(bytes2, type);
+            R r2 = redisData2.getData();
             LocalDateTime expireTime2 = redisData2.getExpireTime();
             if (expireTime2.isAfter(LocalDateTime.now())) {
                 // 已被更新，直接返回新数据
+                unLock(lockKey);
                 return r2;
             }
 
-            // 缓存未被更新，开启新线程进行缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 缓存未被更新，交给重建线程池，失败时由线程池记录
+            boolean accepted = rebuildScheduler.submit(key, () -> {
                 try {
                     // 查询数据库
                     R res = dbFallback.apply(id);
                     // 更新缓存
                     setWithLogicalExpire(key, res, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     unLock(lockKey);
                 }
             });
+            if (!accepted) {
+                // 没有排上队，释放锁，下次访问再重建
+                unLock(lockKey);
+            }
         }
         // 此处要返回已过期的数据
         // 因为缓存重建是使用新线程进行的，主线程还是要返回过期的商品信息
         return r;
     }
 
+    /**
+     * 概率提前刷新（XFetch）
+     * 每次读取时，若 当前时间 - 重建耗时 * beta * ln(random) >= 逻辑过期时间 就提前异步重建，
+     * 越接近过期、重建越慢，提前刷新的概率越大，重建会分散开，很少等到真正过期
+     * 与逻辑过期不同，缓存不存在时会同步查询数据库并写入，不需要预热
+     */
+    public <R, ID> R cacheEarlyRefresh(
+            String keyPrefix,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (ArrayUtil.isEmpty(bytes)) {
+            if (bytes != null) {
+                // 命中空值
+                return null;
+            }
+            // 缓存不存在，同步加载，本节点的并发请求共享同一次查询
+            return singleflight(key, type, () -> loadLogical(keyPrefix, key, id, dbFallback, time, timeUnit));
+        }
+        RedisData<R> redisData = cacheCodec.decodeLogical(bytes, type);
+        R r = redisData.getData();
+        long now = System.currentTimeMillis();
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long rebuildMillis = redisData.getRebuildMillis() == null ? 0L : redisData.getRebuildMillis();
+        if (now >= expireMillis) {
+            // 已经过期，与逻辑过期相同，异步重建并返回旧数据
+            refreshAsync(keyPrefix, key, id, dbFallback, time, timeUnit, "expired");
+            return r;
+        }
+        if (refreshEarly(now, expireMillis, rebuildMillis)) {
+            refreshAsync(keyPrefix, key, id, dbFallback, time, timeUnit, "early");
+            return r;
+        }
+        localCache.put(key, r, Math.min(expireMillis - now, TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL)));
+        return r;
+    }
+
+    /**
+     * XFetch：当前时间 - 重建耗时 * beta * ln(random) >= 逻辑过期时间 时提前刷新
+     */
+    private static boolean refreshEarly(long now, long expireMillis, long rebuildMillis) {
+        double gap = -rebuildMillis * EARLY_REFRESH_BETA * Math.log(ThreadLocalRandom.current().nextDouble());
+        return now + gap >= expireMillis;
+    }
+
+    /**
+     * 查询数据库并记录耗时，按逻辑过期写入redis
+     */
+    private <R, ID> R loadLogical(String keyPrefix, String key, ID id, Function<ID, R> dbFallback,
+                                  Long time, TimeUnit timeUnit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        long rebuildMillis = System.currentTimeMillis() - begin;
+        if (r == null) {
+            setNull(key);
+            return null;
+        }
+        setWithLogicalExpire(key, r, time, timeUnit, rebuildMillis);
+        return r;
+    }
+
+    /**
+     * 获取到互斥锁的节点异步重建，其余请求继续返回当前数据
+     */
+    private <R, ID> void refreshAsync(String keyPrefix, String key, ID id, Function<ID, R> dbFallback,
+                                      Long time, TimeUnit timeUnit, String cause) {
+        String lockKey = LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        meterRegistry.counter("cache.refresh", "prefix", keyPrefix, "cause", cause).increment();
+        boolean accepted = rebuildScheduler.submit(key, () -> {
+            try {
+                loadLogical(keyPrefix, key, id, dbFallback, time, timeUnit);
+            } finally {
+                unLock(lockKey);
+            }
+        });
+        if (!accepted) {
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 本节点正在进行的异步加载
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightAsync = new ConcurrentHashMap<>();
+
+    /**
+     * 异步查询，不阻塞调用线程，也不占用连接池
+     * 布隆过滤器只查本地镜像，先于redis判断；之后通过lettuce的多路复用连接读取redis，
+     * 只有未过期的数据直接在事件循环线程上返回，
+     * 未命中、已过期或需要提前刷新时，在dbExecutor上按key前缀登记的策略查询（互斥锁、逻辑过期等与同步查询相同），
+     * 本节点同一个key的并发请求共享一次查询
+     */
+    public <R, ID> CompletableFuture<R> queryAsync(
+            String keyPrefix,
+            ID id,
+            Class<R> type,
+            Function<ID, R> dbFallback,
+            Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        if (hotKeyDetector.record(key)) {
+            R hot = getHot(keyPrefix, key, id, type, dbFallback, time, timeUnit);
+            if (hot != null) {
+                return CompletableFuture.completedFuture(hot);
+            }
+        }
+        R local = getLocal(key, type);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+        if (!mightExist(keyPrefix, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CacheStrategy strategy = strategyOf(keyPrefix);
+        return asyncCacheConnection.async().get(key).toCompletableFuture()
+                .thenCompose(bytes -> {
+                    if (bytes != null && bytes.length == 0) {
+                        // 命中空值
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (bytes != null) {
+                        R fresh = readFresh(strategy, key, bytes, type);
+                        if (fresh != null) {
+                            return CompletableFuture.completedFuture(fresh);
+                        }
+                    }
+                    return loadAsync(keyPrefix, key, id, type, dbFallback, time, timeUnit);
+                })
+                .thenApply(r -> {
+                    putHot(key, r);
+                    return r;
+                });
+    }
+
+    /**
+     * 解码异步读到的数据，不需要重建时放入一级缓存并返回，需要按策略处理时返回null
+     */
+    private <R> R readFresh(CacheStrategy strategy, String key, byte[] bytes, Class<R> type) {
+        if (strategy != CacheStrategy.LOGICAL_EXPIRE && strategy != CacheStrategy.EARLY_REFRESH) {
+            R r = cacheCodec.decode(bytes, type);
+            putLocal(key, r);
+            return r;
+        }
+        RedisData<R> redisData = cacheCodec.decodeLogical(bytes, type);
+        long now = System.currentTimeMillis();
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long rebuildMillis = redisData.getRebuildMillis() == null ? 0L : redisData.getRebuildMillis();
+        if (now >= expireMillis || (strategy == CacheStrategy.EARLY_REFRESH && refreshEarly(now, expireMillis, rebuildMillis))) {
+            // 已过期或需要提前刷新，由策略重新读取并决定是否重建
+            return null;
+        }
+        localCache.put(key, redisData.getData(), Math.min(expireMillis - now, TimeUnit.SECONDS.toMillis(CACHE_LOCAL_TTL)));
+        return redisData.getData();
+    }
+
+    /**
+     * 在dbExecutor上按策略查询，排队已满时直接失败
+     */
+    private <R, ID> CompletableFuture<R> loadAsync(String keyPrefix, String key, ID id, Class<R> type,
+                                                   Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightAsync.putIfAbsent(key, call);
+        if (inFlight != null) {
+            return inFlight.thenApply(type::cast);
+        }
+        try {
+            CompletableFuture.supplyAsync(() -> queryByStrategy(keyPrefix, id, type, dbFallback, time, timeUnit), dbExecutor)
+                    .whenComplete((r, e) -> {
+                        inFlightAsync.remove(key, call);
+                        if (e != null) {
+                            call.completeExceptionally(e);
+                        } else {
+                            call.complete(r);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            inFlightAsync.remove(key, call);
+            call.completeExceptionally(e);
+        }
+        return call.thenApply(type::cast);
+    }
+
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         // 直接返回有可能会因为自动拆箱而发生空指针异常，此处直接进行拆箱操作
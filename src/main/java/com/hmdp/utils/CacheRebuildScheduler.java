@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存重建线程池，所有异步重建共用
+ * 1. 同一个key同时只会排队一次，重复提交直接忽略
+ * 2. 排队数量有上限，超出时拒绝，由调用方释放锁并继续返回旧数据
+ * 3. 越热的key越先重建
+ * 4. 记录重建耗时与失败次数，容器关闭时等待已排队的任务执行完
+ *
+ * @Author vita
+ * @Date 2022/12/30 10:00
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    /**
+     * 排队中和执行中的重建任务
+     */
+    private final Map<String, RebuildTask> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private ThreadPoolExecutor executor;
+    private Timer latency;
+    private Counter failures;
+    private Counter rejected;
+    private Counter deduplicated;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        // 队列本身不限长度，排队数量由pending控制
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet()));
+        latency = meterRegistry.timer("cache.rebuild.latency");
+        failures = meterRegistry.counter("cache.rebuild", "result", "failure");
+        rejected = meterRegistry.counter("cache.rebuild", "result", "rejected");
+        deduplicated = meterRegistry.counter("cache.rebuild", "result", "deduplicated");
+        meterRegistry.gauge("cache.rebuild.pending", pending, Map::size);
+    }
+
+    /**
+     * 提交重建任务
+     * @return 是否会执行，返回false时（重复提交或队列已满）调用方需要自行释放持有的锁
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        RebuildTask task = new RebuildTask(key, rebuild, hotKeyDetector.estimate(key), sequence.incrementAndGet());
+        if (pending.putIfAbsent(key, task) != null) {
+            deduplicated.increment();
+            return false;
+        }
+        if (pending.size() > queueCapacity || executor.isShutdown()) {
+            pending.remove(key, task);
+            rejected.increment();
+            log.warn("缓存重建排队已满，放弃重建 {}", key);
+            return false;
+        }
+        executor.execute(task);
+        return true;
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("缓存重建线程池关闭超时，丢弃 {} 个任务", executor.shutdownNow().size());
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable rebuild;
+        private final long hotness;
+        private final long seq;
+
+        RebuildTask(String key, Runnable rebuild, long hotness, long seq) {
+            this.key = key;
+            this.rebuild = rebuild;
+            this.hotness = hotness;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
+                rebuild.run();
+            } catch (Exception e) {
+                failures.increment();
+                log.error("缓存重建失败 {}", key, e);
+            } finally {
+                latency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                pending.remove(key, this);
+            }
+        }
+
+        /**
+         * 访问次数多的在前，相同时先提交的在前
+         */
+        @Override
+        public int compareTo(RebuildTask other) {
+            int c = Long.compare(other.hotness, hotness);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient的缓存策略，按key前缀选择
+ *
+ * @Author vita
+ * @Date 2022/12/27 9:40
+ */
+public enum CacheStrategy {
+    /**
+     * 缓存空值，解决缓存穿透
+     */
+    PASS_THROUGH,
+    /**
+     * 缓存空值+互斥锁重建，解决缓存穿透和缓存击穿
+     */
+    MUTEX,
+    /**
+     * 逻辑过期，过期后由一个线程异步重建，其余请求返回旧数据，需要提前预热
+     */
+    LOGICAL_EXPIRE,
+    /**
+     * 逻辑过期+概率提前刷新（XFetch），越接近过期、重建越慢，提前刷新的概率越大
+     */
+    EARLY_REFRESH
+}
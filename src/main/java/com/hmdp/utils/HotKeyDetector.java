@@ -0,0 +1,189 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * 本节点的热点key探测
+ * 使用滑动窗口的Count-Min Sketch统计每个key最近一个窗口内的访问次数：
+ * 窗口被分成若干个时间片，每个时间片一个sketch，到时间后清空最旧的时间片，
+ * 估计值为所有时间片对应计数之和在各行中的最小值（只会偏大，不会偏小）
+ * 访问次数达到阈值的key被标记为热点，降到阈值一半以下时取消标记，避免在阈值附近来回切换
+ *
+ * @Author vita
+ * @Date 2022/12/29 11:00
+ */
+@Slf4j
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final int threshold;
+    private final int topK;
+    /**
+     * 每个时间片一个sketch，按行依次存放，长度为 DEPTH * width
+     */
+    private final AtomicIntegerArray[] slots;
+    private volatile int current;
+
+    /**
+     * 当前的热点key
+     */
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+    /**
+     * 访问次数达到阈值1/4的候选key，用于统计top-K，数量有上限
+     */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+    private final int maxCandidates;
+
+    private volatile Consumer<String> demotionListener = key -> { };
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hot-key-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param threshold 一个窗口内访问多少次视为热点
+     * @param windowSeconds 窗口长度
+     * @param slotCount 窗口分成的时间片数量
+     * @param width sketch每行的计数器数量，会向上取整为2的幂
+     * @param topK 查询热点时返回的数量
+     */
+    public HotKeyDetector(int threshold, int windowSeconds, int slotCount, int width, int topK) {
+        this.threshold = threshold;
+        this.topK = topK;
+        this.maxCandidates = topK * 8;
+        this.width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.slots = new AtomicIntegerArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicIntegerArray(DEPTH * this.width);
+        }
+        long period = TimeUnit.SECONDS.toMillis(windowSeconds) / slotCount;
+        scheduler.scheduleAtFixedRate(this::rotate, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * key不再是热点时回调
+     */
+    public void setDemotionListener(Consumer<String> demotionListener) {
+        this.demotionListener = demotionListener;
+    }
+
+    /**
+     * 记录一次访问
+     * @return key当前是否为热点
+     */
+    public boolean record(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 * 0x9E3779B9) | 1;
+        AtomicIntegerArray slot = slots[current];
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * width + ((h1 + i * h2) & (width - 1));
+            slot.incrementAndGet(index);
+            estimate = Math.min(estimate, sum(index));
+        }
+        if (estimate >= threshold) {
+            if (hotKeys.add(key)) {
+                candidates.add(key);
+                log.info("发现热点key {}，窗口内访问 {} 次", key, estimate);
+            }
+            return true;
+        }
+        if (estimate >= threshold / 4 && candidates.size() < maxCandidates) {
+            candidates.add(key);
+        }
+        // 已经是热点的key等到窗口滚动时再判断是否降级
+        return hotKeys.contains(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    public int hotKeyCount() {
+        return hotKeys.size();
+    }
+
+    /**
+     * 访问次数最多的topK个key，按次数倒序
+     */
+    public List<HotKey> topKeys() {
+        List<HotKey> result = new ArrayList<>(candidates.size());
+        for (String key : candidates) {
+            result.add(new HotKey(key, estimate(key), hotKeys.contains(key)));
+        }
+        result.sort(Comparator.comparingLong(HotKey::getCount).reversed());
+        return result.size() > topK ? new ArrayList<>(result.subList(0, topK)) : result;
+    }
+
+    public long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 * 0x9E3779B9) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sum(i * width + ((h1 + i * h2) & (width - 1))));
+        }
+        return estimate;
+    }
+
+    private long sum(int index) {
+        long sum = 0;
+        for (AtomicIntegerArray slot : slots) {
+            sum += slot.get(index);
+        }
+        return sum;
+    }
+
+    /**
+     * 窗口向前滚动一个时间片，清空最旧的时间片后重新判断热点
+     */
+    private void rotate() {
+        try {
+            int next = (current + 1) % slots.length;
+            AtomicIntegerArray slot = slots[next];
+            for (int i = 0; i < slot.length(); i++) {
+                slot.set(i, 0);
+            }
+            current = next;
+            for (String key : candidates) {
+                long estimate = estimate(key);
+                if (hotKeys.contains(key) && estimate < threshold / 2) {
+                    hotKeys.remove(key);
+                    log.info("热点key {} 已降温，窗口内访问 {} 次", key, estimate);
+                    demotionListener.accept(key);
+                }
+                if (!hotKeys.contains(key) && estimate < threshold / 4) {
+                    candidates.remove(key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("热点key窗口滚动异常", e);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
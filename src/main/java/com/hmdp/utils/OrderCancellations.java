@@ -0,0 +1,290 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.ListUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 超时未支付订单的自动取消
+ * 1. 订单写入数据库时（同一个事务中）把 orderId -> 支付截止时间 写入 order:pay:deadline，
+ *    同时在本节点的时间轮中登记，到期时直接处理，不需要扫描订单表
+ * 2. 每隔poll-seconds从zset中取出到期的订单，处理其他节点创建的、重启前创建的订单
+ * 3. 处理前先用脚本认领（推迟截止时间），多个节点不会同时处理同一个订单，认领后宕机的订单到时再次处理
+ * 4. 数据库中加行锁把未支付的订单改为已取消并归还库存，提交后用脚本归还redis库存、移除已下单用户，
+ *    脚本只处理第一次加入 order:cancelled 集合的订单，重复执行不会多归还，最后从zset中移除
+ *    分片模式下脚本只访问用户所在分片的key，全局的zset在脚本之外单独移除，避免跨slot
+ * 已支付等其他状态的订单只从zset中移除
+ *
+ * @Author vita
+ * @Date 2023/01/13 10:00
+ */
+@Slf4j
+@Component
+public class OrderCancellations {
+
+    private static final String CANCEL_REASON = "超时未支付";
+    /**
+     * 已取消订单集合的过期时间，只需要覆盖重复处理同一个订单的时间窗口
+     */
+    private static final long CANCELLED_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_cancel_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        CANCEL_SCRIPT = SeckillScripts.load("order_cancel.lua", Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private OrderStatuses orderStatuses;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 默认关闭：项目中还没有把订单改为已支付的接口，开启后所有秒杀订单都会在超时后被取消
+     */
+    @Value("${hmdp.seckill.cancel.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.cancel.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+    @Value("${hmdp.seckill.cancel.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.cancel.poll-seconds:10}")
+    private long pollSeconds;
+    /**
+     * 认领后多久没有处理完，视为处理的节点已宕机
+     */
+    @Value("${hmdp.seckill.cancel.claim-seconds:60}")
+    private long claimSeconds;
+
+    /**
+     * 时间轮，每100ms前进一格，到期的订单放入due，由取消线程批量处理
+     */
+    private final HashedWheelTimer wheel = new HashedWheelTimer(r -> {
+        Thread thread = new Thread(r, "order-cancel-wheel");
+        thread.setDaemon(true);
+        return thread;
+    }, 100, TimeUnit.MILLISECONDS, 512);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-cancel");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Long> due = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private Counter cancelled;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        cancelled = meterRegistry.counter("order.cancel");
+        meterRegistry.gauge("order.cancel.wheel.pending", wheel, HashedWheelTimer::pendingTimeouts);
+        executor.scheduleWithFixedDelay(this::poll, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 登记新写入的订单，在创建订单的事务中调用，登记失败时订单回滚
+     * 事务回滚后留下的记录到期时找不到订单，直接移除
+     */
+    public void schedule(List<VoucherOrder> voucherOrders) {
+        if (!enabled || voucherOrders.isEmpty()) {
+            return;
+        }
+        long timeoutMillis = TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            tuples.add(new DefaultTypedTuple<>(voucherOrder.getId().toString(), (double) deadline));
+        }
+        stringRedisTemplate.opsForZSet().add(ORDER_PAY_DEADLINE_KEY, tuples);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Long orderId = voucherOrder.getId();
+            wheel.newTimeout(timeout -> onDue(orderId), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onDue(Long orderId) {
+        due.add(orderId);
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * 处理时间轮中到期的订单
+     */
+    private void drain() {
+        try {
+            List<Long> batch = new ArrayList<>(batchSize);
+            Long orderId;
+            while ((orderId = due.poll()) != null) {
+                batch.add(orderId);
+                if (batch.size() == batchSize || due.isEmpty()) {
+                    cancelQuietly(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        // 结束前新到期的订单
+        if (!due.isEmpty() && draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * 处理zset中到期的订单，每次最多batchSize个，直到没有到期的订单
+     */
+    private void poll() {
+        try {
+            while (true) {
+                Set<String> ids = stringRedisTemplate.opsForZSet().rangeByScore(
+                        ORDER_PAY_DEADLINE_KEY, 0, System.currentTimeMillis(), 0, batchSize);
+                if (ids == null || ids.isEmpty()) {
+                    return;
+                }
+                int claimed = cancel(ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+                // 都被其他节点认领了，等下一次
+                if (claimed == 0 || ids.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("取消超时未支付订单异常", e);
+        }
+    }
+
+    private void cancelQuietly(List<Long> orderIds) {
+        try {
+            cancel(orderIds);
+        } catch (Exception e) {
+            // 已认领的订单在claim-seconds后由poll重新处理
+            log.error("取消超时未支付订单 {} 异常", orderIds, e);
+        }
+    }
+
+    /**
+     * 认领并取消一批订单
+     * @return 认领到的订单数
+     */
+    @SuppressWarnings("unchecked")
+    private int cancel(List<Long> orderIds) {
+        long now = System.currentTimeMillis();
+        List<Object> args = new ArrayList<>(orderIds.size() + 2);
+        args.add(String.valueOf(now));
+        args.add(String.valueOf(now + TimeUnit.SECONDS.toMillis(claimSeconds)));
+        orderIds.forEach(id -> args.add(id.toString()));
+        List<String> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Collections.singletonList(ORDER_PAY_DEADLINE_KEY), args.toArray());
+        if (claimed == null || claimed.isEmpty()) {
+            return 0;
+        }
+        List<Long> claimedIds = claimed.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<VoucherOrder> voucherOrders = voucherOrderService.cancelUnpaidOrders(claimedIds);
+
+        // 已支付或不存在的订单不再需要取消
+        Set<Long> cancelledIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Object[] others = claimed.stream().filter(id -> !cancelledIds.contains(Long.valueOf(id))).toArray();
+        if (others.length > 0) {
+            stringRedisTemplate.opsForZSet().remove(ORDER_PAY_DEADLINE_KEY, others);
+        }
+        if (!voucherOrders.isEmpty()) {
+            giveBack(voucherOrders);
+            stringRedisTemplate.opsForZSet().remove(ORDER_PAY_DEADLINE_KEY,
+                    voucherOrders.stream().map(o -> o.getId().toString()).toArray());
+            orderStatuses.cancelled(voucherOrders, CANCEL_REASON);
+            cancelled.increment(voucherOrders.size());
+            log.debug("取消 {} 个超时未支付的订单", voucherOrders.size());
+        }
+        return claimed.size();
+    }
+
+    /**
+     * 按秒杀券（分片模式下按用户所在的分片）归还redis库存，移除已下单用户
+     */
+    private void giveBack(List<VoucherOrder> voucherOrders) {
+        Map<List<String>, List<String>> groups = new HashMap<>();
+        Map<List<String>, Long> vouchers = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Long voucherId = voucherOrder.getVoucherId();
+            int shardCount = seckillShards.shardCount(voucherId);
+            List<String> keys;
+            if (shardCount == 1) {
+                keys = ListUtil.of(ORDER_CANCELLED_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                        SECKILL_STOCK_KEY + voucherId, SECKILL_META_KEY + voucherId);
+            } else {
+                int home = seckillShards.homeShard(voucherOrder.getUserId(), shardCount);
+                keys = ListUtil.of(SeckillShards.cancelledKey(voucherId, home),
+                        SeckillShards.orderKey(voucherId, home), SeckillShards.stockKey(voucherId, home),
+                        SeckillShards.metaKey(voucherId, home));
+            }
+            List<String> args = groups.computeIfAbsent(keys,
+                    k -> ListUtil.toList(String.valueOf(CANCELLED_TTL_SECONDS)));
+            args.add(voucherOrder.getId().toString());
+            args.add(voucherOrder.getUserId().toString());
+            vouchers.put(keys, voucherId);
+        }
+        Set<Long> restocked = new HashSet<>();
+        groups.forEach((keys, args) -> {
+            Long n = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, args.toArray());
+            if (n != null && n > 0) {
+                restocked.add(vouchers.get(keys));
+            }
+        });
+        // 有了库存，清除各节点的售罄标记
+        restocked.forEach(soldOutFlags::clear);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        wheel.stop();
+        executor.shutdownNow();
+    }
+}
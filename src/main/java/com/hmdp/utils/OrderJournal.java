@@ -0,0 +1,275 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+/**
+ * 本节点已接受但还未提交到redis的秒杀订单日志，用于租约模式
+ * 1. 日志由多个段文件 orders-<段号>.journal 组成，每段 segment-records 条定长记录，整段映射到内存，
+ *    写入一条记录只是几次内存写，不访问redis和数据库
+ * 2. 记录格式（40字节）：序号 orderId userId voucherId 各8字节，前32字节的crc32 4字节，4字节填充
+ *    序号连续递增，记录所在的段和位置由序号决定，序号或crc不对的记录视为无效（写了一半，或回收段中的旧数据）
+ * 3. 订单提交到redis后推进检查点（checkpoint文件，8字节，最小的未提交序号），检查点之前的段回收重用
+ * 4. 启动时从检查点开始读取有效记录，交给租约重新提交
+ * 写入映射内存后进程崩溃不会丢失记录，机器断电时还未刷盘的记录会丢失
+ *
+ * @Author vita
+ * @Date 2023/01/12 10:00
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final int RECORD_SIZE = 40;
+    private static final int CHECKSUM_OFFSET = 32;
+    private static final String SEGMENT_PREFIX = "orders-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String FREE_PREFIX = "free-";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    /**
+     * 最多保留的空闲段数量，多出的直接删除
+     */
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    /**
+     * 是否在租约模式下写日志
+     */
+    @Value("${hmdp.seckill.journal.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.journal.dir:journal}")
+    private String dir;
+    /**
+     * 每个段文件的记录数
+     */
+    @Value("${hmdp.seckill.journal.segment-records:65536}")
+    private int segmentRecords;
+
+    private File directory;
+    private MappedByteBuffer checkpointBuffer;
+    /**
+     * 段号 -> 段文件的映射，只保留检查点之后的段
+     */
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    /**
+     * 已回收可以重用的段文件
+     */
+    private final Deque<File> freeSegments = new ArrayDeque<>();
+    /**
+     * 下一条记录的序号
+     */
+    private long next;
+    /**
+     * 已写入日志还未提交的订单，orderId -> 序号
+     */
+    private final Map<Long, Long> pending = new ConcurrentHashMap<>();
+    private final NavigableSet<Long> pendingSequences = new ConcurrentSkipListSet<>();
+    private long checkpoint;
+    private volatile boolean opened;
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * 打开日志，返回检查点之后还未提交的订单，这些订单仍记为未提交，重新提交后调用commit
+     */
+    public synchronized List<VoucherOrder> open() {
+        directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("无法创建订单日志目录 " + directory.getAbsolutePath());
+        }
+        try {
+            checkpointBuffer = map(new File(directory, CHECKPOINT_FILE), 8);
+            checkpoint = checkpointBuffer.getLong(0);
+            List<VoucherOrder> orders = replay();
+            opened = true;
+            return orders;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<VoucherOrder> replay() throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] listed = directory.listFiles();
+        for (File file : listed == null ? new File[0] : listed) {
+            String name = file.getName();
+            if (name.startsWith(FREE_PREFIX)) {
+                freeSegments.add(file);
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        next = checkpoint;
+        long firstSegment = checkpoint / segmentRecords;
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            long segment = entry.getKey();
+            if (segment < firstSegment || entry.getValue().length() != (long) segmentRecords * RECORD_SIZE) {
+                // 检查点之前的段，或者大小与当前配置不同的段，不再读取
+                recycle(entry.getValue());
+                continue;
+            }
+            MappedByteBuffer buffer = map(entry.getValue(), (long) segmentRecords * RECORD_SIZE);
+            segments.put(segment, buffer);
+            for (int slot = 0; slot < segmentRecords; slot++) {
+                long sequence = segment * segmentRecords + slot;
+                if (sequence < checkpoint || !isValid(buffer, slot, sequence)) {
+                    continue;
+                }
+                int position = slot * RECORD_SIZE;
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(buffer.getLong(position + 8));
+                voucherOrder.setUserId(buffer.getLong(position + 16));
+                voucherOrder.setVoucherId(buffer.getLong(position + 24));
+                orders.add(voucherOrder);
+                pending.put(voucherOrder.getId(), sequence);
+                pendingSequences.add(sequence);
+                next = Math.max(next, sequence + 1);
+            }
+        }
+        log.info("订单日志 {} 检查点 {}，重放 {} 个未提交的订单", directory.getAbsolutePath(), checkpoint, orders.size());
+        return orders;
+    }
+
+    private static boolean isValid(MappedByteBuffer buffer, int slot, long sequence) {
+        int position = slot * RECORD_SIZE;
+        return buffer.getLong(position) == sequence
+                && buffer.getInt(position + CHECKSUM_OFFSET) == checksum(buffer, position);
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int position) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+            crc.update(buffer.get(position + i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 写入一条订单记录，在返回秒杀结果之前调用
+     */
+    public void append(VoucherOrder voucherOrder) {
+        if (!opened) {
+            return;
+        }
+        synchronized (this) {
+            long sequence = next;
+            MappedByteBuffer buffer = segment(sequence / segmentRecords);
+            int position = (int) (sequence % segmentRecords) * RECORD_SIZE;
+            buffer.putLong(position, sequence);
+            buffer.putLong(position + 8, voucherOrder.getId());
+            buffer.putLong(position + 16, voucherOrder.getUserId());
+            buffer.putLong(position + 24, voucherOrder.getVoucherId());
+            buffer.putInt(position + CHECKSUM_OFFSET, checksum(buffer, position));
+            next = sequence + 1;
+            pending.put(voucherOrder.getId(), sequence);
+            pendingSequences.add(sequence);
+        }
+    }
+
+    /**
+     * 写满一段后打开下一段，优先重用回收的段文件
+     */
+    private MappedByteBuffer segment(long segment) {
+        MappedByteBuffer buffer = segments.get(segment);
+        if (buffer != null) {
+            return buffer;
+        }
+        File file = new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+        File free = freeSegments.poll();
+        if (free != null && !free.renameTo(file)) {
+            log.warn("重用订单日志段 {} 失败", free);
+        }
+        try {
+            buffer = map(file, (long) segmentRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.put(segment, buffer);
+        return buffer;
+    }
+
+    /**
+     * 订单已提交到redis（包括作废的订单），推进检查点并回收检查点之前的段
+     */
+    public void commit(Collection<VoucherOrder> voucherOrders) {
+        if (!opened) {
+            return;
+        }
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Long sequence = pending.remove(voucherOrder.getId());
+            if (sequence != null) {
+                pendingSequences.remove(sequence);
+            }
+        }
+        synchronized (this) {
+            Long first = pendingSequences.isEmpty() ? null : pendingSequences.first();
+            long advanced = first == null ? next : first;
+            if (advanced <= checkpoint) {
+                return;
+            }
+            checkpoint = advanced;
+            checkpointBuffer.putLong(0, checkpoint);
+            while (!segments.isEmpty() && (segments.firstKey() + 1) * segmentRecords <= checkpoint) {
+                Map.Entry<Long, MappedByteBuffer> entry = segments.pollFirstEntry();
+                recycle(new File(directory, SEGMENT_PREFIX + entry.getKey() + SEGMENT_SUFFIX));
+            }
+        }
+    }
+
+    private void recycle(File file) {
+        if (freeSegments.size() >= MAX_FREE_SEGMENTS
+                || file.length() != (long) segmentRecords * RECORD_SIZE) {
+            if (!file.delete()) {
+                log.warn("删除订单日志段 {} 失败", file);
+            }
+            return;
+        }
+        File free = new File(directory, FREE_PREFIX + file.getName());
+        if (file.renameTo(free)) {
+            freeSegments.add(free);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // 映射在channel关闭后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * 关闭时把映射的内容刷到磁盘
+     */
+    @PreDestroy
+    public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+        segments.values().forEach(MappedByteBuffer::force);
+        checkpointBuffer.force();
+        opened = false;
+    }
+}
@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的处理状态
+ * 保存在 order:status:<orderId> 中，字段为 status reason userId voucherId，ORDER_STATUS_TTL 后过期
+ * 抢到时为QUEUED（由秒杀脚本写入），消费者创建订单后改为CREATED，无法创建时改为FAILED，超时未支付取消后为CANCELLED
+ * 状态变为CREATED/FAILED后发布通知，唤醒本节点上等待该订单的请求
+ *
+ * @Author vita
+ * @Date 2023/01/10 10:00
+ */
+@Component
+public class OrderStatuses {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点上等待订单状态变化的请求
+     */
+    private final Map<Long, Map<DeferredResult<Result>, Long>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 秒杀脚本没有写入状态时（分片模式）单独写入
+     */
+    public void queued(Long orderId, Long userId, Long voucherId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        write(Collections.singletonList(voucherOrder), QUEUED, null);
+    }
+
+    public void created(List<VoucherOrder> voucherOrders) {
+        write(voucherOrders, CREATED, null);
+        publish(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    public void failed(VoucherOrder voucherOrder, String reason) {
+        write(Collections.singletonList(voucherOrder), FAILED, reason);
+        publish(Collections.singletonList(voucherOrder.getId()));
+    }
+
+    public void cancelled(List<VoucherOrder> voucherOrders, String reason) {
+        write(voucherOrders, CANCELLED, reason);
+        publish(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * 状态由脚本写入时，只发布通知
+     */
+    public void publish(Collection<?> orderIds) {
+        if (!orderIds.isEmpty()) {
+            stringRedisTemplate.convertAndSend(ORDER_STATUS_CHANNEL, StrUtil.join(",", orderIds));
+        }
+    }
+
+    private void write(List<VoucherOrder> voucherOrders, String status, String reason) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                byte[] key = (ORDER_STATUS_KEY + voucherOrder.getId()).getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> fields = new HashMap<>();
+                fields.put(bytes("status"), bytes(status));
+                fields.put(bytes("userId"), bytes(voucherOrder.getUserId().toString()));
+                fields.put(bytes("voucherId"), bytes(voucherOrder.getVoucherId().toString()));
+                if (reason != null) {
+                    fields.put(bytes("reason"), bytes(reason));
+                }
+                connection.hMSet(key, fields);
+                connection.expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+            }
+            return null;
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 查询订单状态，只能查询自己的订单
+     * @return 不存在或已过期时返回null
+     */
+    public OrderStatus get(Long orderId, Long userId) {
+        return toStatus(orderId, stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId), userId);
+    }
+
+    private static OrderStatus toStatus(Long orderId, Map<Object, Object> entries, Long userId) {
+        if (entries.isEmpty() || !userId.toString().equals(entries.get("userId"))) {
+            return null;
+        }
+        Object voucherId = entries.get("voucherId");
+        return new OrderStatus(orderId, voucherId == null ? null : Long.valueOf(voucherId.toString()),
+                (String) entries.get("status"), (String) entries.get("reason"));
+    }
+
+    /**
+     * 查询订单状态，订单还未处理完时最多等待waitMillis，状态变化后立即返回
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long waitMillis) {
+        DeferredResult<Result> result = new DeferredResult<>(waitMillis);
+        OrderStatus status = get(orderId, userId);
+        if (waitMillis <= 0 || isDone(status)) {
+            result.setResult(toResult(status));
+            return result;
+        }
+        waiters.computeIfAbsent(orderId, id -> new ConcurrentHashMap<>()).put(result, userId);
+        result.onTimeout(() -> result.setResult(toResult(get(orderId, userId))));
+        result.onCompletion(() -> removeWaiter(orderId, result));
+        // 注册前状态可能已经变化，再查询一次
+        status = get(orderId, userId);
+        if (isDone(status)) {
+            result.setResult(toResult(status));
+        }
+        return result;
+    }
+
+    /**
+     * 收到订单状态变化的通知，消息内容为逗号分隔的订单id
+     */
+    public void onMessage(String message) {
+        for (String id : message.split(",")) {
+            Long orderId = Long.valueOf(id);
+            Map<DeferredResult<Result>, Long> results = waiters.get(orderId);
+            if (results == null) {
+                continue;
+            }
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+            results.forEach((result, userId) -> {
+                OrderStatus status = toStatus(orderId, entries, userId);
+                if (isDone(status)) {
+                    result.setResult(toResult(status));
+                }
+            });
+        }
+    }
+
+    private void removeWaiter(Long orderId, DeferredResult<Result> result) {
+        waiters.computeIfPresent(orderId, (id, results) -> {
+            results.remove(result);
+            return results.isEmpty() ? null : results;
+        });
+    }
+
+    private static boolean isDone(OrderStatus status) {
+        return status != null && !QUEUED.equals(status.getStatus());
+    }
+
+    private static Result toResult(OrderStatus status) {
+        return status == null ? Result.fail("订单不存在或已过期") : Result.ok(status);
+    }
+}
@@ -0,0 +1,338 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_RELOAD_CHANNEL;
+
+/**
+ * 基于redis bitmap的布隆过滤器，解决缓存穿透
+ * 每个节点在本地保存一份位图镜像，判断只查本地，不访问redis；
+ * 新增数据时广播给其他节点写入各自的镜像，错过广播的节点在定时重新加载时补上
+ * 加载完成前新增的数据先暂存在本地，加载后再写入；写入redis时校验位数和哈希函数个数，
+ * 其他节点已经重建、参数变化时先重新加载，不会按旧的参数写入新的位图
+ * 位图和参数的key使用相同的hash tag，重建时的rename与写入脚本都在同一个slot
+ *
+ * @Author vita
+ * @Date 2022/12/21 14:30
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    /**
+     * 重建时每批从数据库读取的id数量
+     */
+    private static final int REBUILD_BATCH_SIZE = 1000;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String name;
+    private final String key;
+    private final String metaKey;
+    private final long expectedInsertions;
+    private final double fpp;
+    /**
+     * 本地位图镜像，为null代表还未从redis加载
+     */
+    private volatile Bits bits;
+    /**
+     * 加载完成前新增的id，修改时与bits的赋值互斥
+     */
+    private final Queue<String> pendingAdds = new ConcurrentLinkedQueue<>();
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String name, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.name = name;
+        this.key = BLOOM_KEY + "{" + name + "}";
+        this.metaKey = key + ":meta";
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在
+     * 只查询本地镜像；过滤器还未加载完成时一律放行
+     */
+    public boolean mightContain(Object id) {
+        Bits current = bits;
+        return current == null || current.allSet(current.indexes(id));
+    }
+
+    /**
+     * 新增数据时调用，同时写入本地镜像和redis，并通知其他节点写入各自的镜像
+     * 还未加载时先暂存，加载完成后再写入
+     */
+    public void add(Object id) {
+        Bits current = bits;
+        if (current == null) {
+            synchronized (this) {
+                current = bits;
+                if (current == null) {
+                    pendingAdds.add(String.valueOf(id));
+                    return;
+                }
+            }
+        }
+        write(current, String.valueOf(id));
+    }
+
+    private void write(Bits current, String id) {
+        long[] indexes = current.indexes(id);
+        current.set(indexes);
+        if (!setBitsIfCurrent(current, indexes)) {
+            // 其他节点已经重建了过滤器，按新的参数重新写入
+            load();
+            current = bits;
+            indexes = current.indexes(id);
+            current.set(indexes);
+            if (!setBitsIfCurrent(current, indexes)) {
+                log.warn("布隆过滤器 {} 正在重建，{} 由重建补上", name, id);
+            }
+        }
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    /**
+     * 参数与redis中的一致时写入redis位图
+     */
+    private boolean setBitsIfCurrent(Bits current, long[] indexes) {
+        List<String> args = new ArrayList<>(indexes.length + 2);
+        args.add(String.valueOf(current.numBits));
+        args.add(String.valueOf(current.numHashes));
+        for (long index : indexes) {
+            args.add(String.valueOf(index));
+        }
+        Long result = stringRedisTemplate.execute(ADD_SCRIPT, ListUtil.of(key, metaKey), args.toArray());
+        return result != null && result == 1;
+    }
+
+    /**
+     * 替换本地镜像，并写入加载完成前暂存的id
+     */
+    private void publish(Bits loaded) {
+        synchronized (this) {
+            bits = loaded;
+        }
+        String id;
+        while ((id = pendingAdds.poll()) != null) {
+            write(loaded, id);
+        }
+    }
+
+    /**
+     * 收到其他节点（包括自己）新增数据的通知时调用，只写入本地镜像
+     */
+    public void onAdded(String id) {
+        Bits current = bits;
+        if (current != null) {
+            current.set(current.indexes(id));
+        }
+    }
+
+    /**
+     * 从redis加载位图到本地
+     *
+     * @return redis中还没有此过滤器时返回false
+     */
+    public boolean load() {
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey);
+        if (meta.isEmpty()) {
+            return false;
+        }
+        long numBits = Long.parseLong(meta.get("bits").toString());
+        int numHashes = Integer.parseInt(meta.get("hashes").toString());
+        byte[] rawKey = rawKey(key);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        Bits loaded = new Bits(numBits, numHashes);
+        if (bytes != null) {
+            loaded.fill(bytes);
+        }
+        publish(loaded);
+        return true;
+    }
+
+    /**
+     * 从数据库重新生成过滤器
+     * 先写入临时key，完成后原子地替换正式key和参数，再通知其他节点重新加载
+     *
+     * @param source            数据库id来源，按id升序分页
+     * @param actualInsertions 当前的数据量，过滤器容量取其两倍与预期容量中较大的一个
+     */
+    public void rebuild(IdSource source, long actualInsertions) {
+        long n = Math.max(expectedInsertions, actualInsertions * 2);
+        long numBits = optimalNumOfBits(n, fpp);
+        int numHashes = optimalNumOfHashes(n, numBits);
+        Bits rebuilt = new Bits(numBits, numHashes);
+        String tmpKey = key + ":rebuild:" + UUID.randomUUID().toString(true);
+
+        // 先把位图扩展到完整长度，数据为空时key也存在
+        stringRedisTemplate.opsForValue().setBit(tmpKey, numBits - 1, false);
+        long lastId = scanInto(source, 0L, rebuilt, tmpKey);
+
+        Map<String, String> meta = new HashMap<>();
+        meta.put("bits", String.valueOf(numBits));
+        meta.put("hashes", String.valueOf(numHashes));
+        stringRedisTemplate.execute(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.multi();
+                ops.rename(tmpKey, key);
+                ops.opsForHash().putAll(metaKey, meta);
+                return ops.exec();
+            }
+        });
+        publish(rebuilt);
+        stringRedisTemplate.convertAndSend(BLOOM_RELOAD_CHANNEL, name);
+        // 补上重建期间新插入的数据
+        scanInto(source, lastId, rebuilt, key);
+    }
+
+    private long scanInto(IdSource source, long afterId, Bits target, String targetKey) {
+        long lastId = afterId;
+        List<Long> ids;
+        while (!(ids = source.nextIds(lastId, REBUILD_BATCH_SIZE)).isEmpty()) {
+            long[][] batch = new long[ids.size()][];
+            for (int i = 0; i < ids.size(); i++) {
+                batch[i] = target.indexes(ids.get(i));
+                target.set(batch[i]);
+            }
+            setBits(targetKey, batch);
+            lastId = ids.get(ids.size() - 1);
+        }
+        return lastId;
+    }
+
+    private void setBits(String targetKey, long[]... indexGroups) {
+        byte[] rawKey = rawKey(targetKey);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long[] indexes : indexGroups) {
+                for (long index : indexes) {
+                    connection.setBit(rawKey, index, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static long optimalNumOfBits(long n, double p) {
+        return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    static int optimalNumOfHashes(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    /**
+     * 按id升序分页读取数据库中已存在的id
+     */
+    @FunctionalInterface
+    public interface IdSource {
+        List<Long> nextIds(long afterId, int limit);
+    }
+
+    /**
+     * 本地位图，位的顺序与redis bitmap一致
+     */
+    private static class Bits {
+        private final long numBits;
+        private final int numHashes;
+        private final AtomicLongArray words;
+
+        Bits(long numBits, int numHashes) {
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.words = new AtomicLongArray((int) ((numBits + 63) >>> 6));
+        }
+
+        long[] indexes(Object id) {
+            long[] hash = MurmurHash.hash128(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            long[] indexes = new long[numHashes];
+            long combined = hash[0];
+            for (int i = 0; i < numHashes; i++) {
+                combined += hash[1];
+                indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+            }
+            return indexes;
+        }
+
+        boolean allSet(long[] indexes) {
+            for (long index : indexes) {
+                if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void set(long[] indexes) {
+            for (long index : indexes) {
+                int i = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = words.get(i);
+                } while ((old & mask) == 0 && !words.compareAndSet(i, old, old | mask));
+            }
+        }
+
+        /**
+         * redis bitmap中第0位是第一个字节的最高位
+         */
+        void fill(byte[] bytes) {
+            // 此时镜像还未对外可见，不需要CAS
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == 0) {
+                    continue;
+                }
+                for (int j = 0; j < 8; j++) {
+                    long index = ((long) i << 3) + j;
+                    if (index < numBits && (bytes[i] & (0x80 >>> j)) != 0) {
+                        int w = (int) (index >>> 6);
+                        words.set(w, words.get(w) | (1L << index));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -11,14 +11,54 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_LOCAL_TTL = 10L;
+    public static final Integer CACHE_LOCAL_SIZE = 10000;
+    public static final Long CACHE_HOT_KEY_LOCAL_TTL = 5L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final Double EARLY_REFRESH_BETA = 1.0;
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
     public static final Long CACHE_SHOP_TYPE_TTL = 300L;
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
 
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_RELOAD_CHANNEL = "bloom:reload";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_SHOP = "shop";
+    public static final String BLOOM_BLOG = "blog";
+    public static final String BLOOM_USER = "user";
+    public static final Double BLOOM_FPP = 0.01;
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_SHARD_COUNTS_KEY = "seckill:shard-counts";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_RATE_KEY = "seckill:rate:";
+    public static final String SECKILL_RATE_CONFIG_KEY = "seckill:rate:config";
+    public static final String SECKILL_RATE_CHANNEL = "seckill:rate";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    public static final String SECKILL_STREAM_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ADMISSION_KEY = "seckill:admission:persisted";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_TOKEN_KEY = "seckill:token:";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 30L;
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_PAY_DEADLINE_KEY = "order:pay:deadline";
+    public static final String ORDER_CANCELLED_KEY = "order:cancelled:";
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
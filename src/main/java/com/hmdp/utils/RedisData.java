@@ -7,5 +7,9 @@ import java.time.LocalDateTime;
 @Data
 public class RedisData<T> {
     private LocalDateTime expireTime;
+    /**
+     * 上一次重建缓存的耗时，毫秒，提前刷新策略用它估算何时开始刷新
+     */
+    private Long rebuildMillis;
     private T data;
 }
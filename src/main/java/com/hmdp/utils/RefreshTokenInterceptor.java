@@ -5,7 +5,7 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.http.HttpStatus;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -21,7 +21,7 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
  * @Author vita
  * @Date 2022/11/26 15:11
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     /**
      * 此拦截器并没有被Spring管控，无法直接注入对象
@@ -64,4 +64,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 清除ThreadLocal中的数据
         UserHolder.removeUser();
     }
+
+    /**
+     * 接口返回异步结果时不会调用afterCompletion，当前线程会直接回到tomcat线程池，需要在这里清除
+     * 异步结果完成后重新分派请求时会再次调用preHandle
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
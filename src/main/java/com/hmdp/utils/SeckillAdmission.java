@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀下单的准入控制，在执行lua脚本之前按订单处理能力拒绝一部分请求
+ * 1. 已确认的订单消息会从stream中删除，所有订单stream的长度之和就是排队中的订单数L
+ * 2. 各节点把处理完的订单数累加到 seckill:admission:persisted，两次采样的差值得到整个集群的处理速度λ
+ * 3. 由 L = λW 估算新订单从进入stream到写入数据库需要等待的时间 W = L / λ
+ * 排队的订单不超过min-backlog时全部放行，否则按 max-wait-millis / W 的比例放行，
+ * 放行的订单数跟随处理速度，过载时吞吐量保持在处理能力附近，已经接受的订单仍在stream中，不会丢失
+ *
+ * @Author vita
+ * @Date 2023/01/15 10:00
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    /**
+     * 处理速度的指数平滑系数
+     */
+    private static final double ALPHA = 0.3;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+    /**
+     * 新订单最多允许等待多久写入数据库
+     */
+    @Value("${hmdp.seckill.admission.max-wait-millis:5000}")
+    private double maxWaitMillis;
+    /**
+     * 排队的订单数不超过这个值时不限制，避免刚开始秒杀、还没有测出处理速度时拒绝请求
+     */
+    @Value("${hmdp.seckill.admission.min-backlog:1000}")
+    private long minBacklog;
+    @Value("${hmdp.seckill.admission.sample-millis:200}")
+    private long sampleMillis;
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-admission");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<byte[]> streamKeys = new ArrayList<>();
+    /**
+     * 本节点上次采样之后处理完的订单数
+     */
+    private final LongAdder persisted = new LongAdder();
+    private long lastTotal = -1;
+    private long lastSampleAt;
+
+    private volatile long backlog;
+    /**
+     * 集群每秒处理的订单数
+     */
+    private volatile double throughput;
+    private volatile double estimatedWaitMillis;
+    private volatile double admitRate = 1;
+    private Counter shed;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        streamKeys.add(bytes(SECKILL_STREAM_KEY));
+        seckillShards.streamKeys().forEach(key -> streamKeys.add(bytes(key)));
+        shed = meterRegistry.counter("seckill.admission.shed");
+        meterRegistry.gauge("seckill.admission.backlog", this, a -> a.backlog);
+        meterRegistry.gauge("seckill.admission.throughput", this, a -> a.throughput);
+        meterRegistry.gauge("seckill.admission.wait", this, a -> a.estimatedWaitMillis);
+        meterRegistry.gauge("seckill.admission.rate", this, a -> a.admitRate);
+        sampler.scheduleWithFixedDelay(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 是否放行这次下单请求，只读取采样的结果，不访问redis
+     */
+    public boolean admit() {
+        if (!enabled) {
+            return true;
+        }
+        double rate = admitRate;
+        if (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate) {
+            return true;
+        }
+        shed.increment();
+        return false;
+    }
+
+    /**
+     * 订单消费者处理完一批订单（写入数据库或判定失败）后调用
+     */
+    public void recordPersisted(int count) {
+        persisted.add(count);
+    }
+
+    private void sample() {
+        long delta = persisted.sumThenReset();
+        List<Object> results;
+        try {
+            results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.incrBy(bytes(SECKILL_ADMISSION_KEY), delta);
+                for (byte[] streamKey : streamKeys) {
+                    connection.xLen(streamKey);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            persisted.add(delta);
+            log.warn("秒杀准入控制采样失败", e);
+            return;
+        }
+        long now = System.nanoTime();
+        long total = (Long) results.get(0);
+        long length = 0;
+        for (int i = 1; i < results.size(); i++) {
+            length += (Long) results.get(i);
+        }
+        if (lastTotal >= 0) {
+            double rate = (total - lastTotal) * 1e9 / (now - lastSampleAt);
+            throughput = ALPHA * rate + (1 - ALPHA) * throughput;
+        }
+        lastTotal = total;
+        lastSampleAt = now;
+        backlog = length;
+
+        double wait = length == 0 ? 0 : throughput > 0 ? length / throughput * 1000 : Double.POSITIVE_INFINITY;
+        estimatedWaitMillis = wait;
+        double rate = length <= minBacklog ? 1 : Math.min(1, maxWaitMillis / wait);
+        if (rate < 1 && admitRate >= 1) {
+            log.warn("订单处理跟不上，开始限制秒杀请求：排队 {}，处理速度 {}/s，预计等待 {}ms",
+                    length, (long) throughput, (long) wait);
+        }
+        admitRate = rate;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        sampler.shutdownNow();
+    }
+}
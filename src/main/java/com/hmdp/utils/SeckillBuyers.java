@@ -0,0 +1,251 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券已下单用户的存储
+ * 1. set：SADD 用户id字符串，每个用户约几十字节，旧的秒杀券使用这种方式
+ * 2. bitmap：SETBIT seckill:order:<id> <userId> 1，大小只与最大的用户id有关，为 最大id/8 字节
+ * 3. chunk：按 userId % buckets 分到多个小hash中，字段为 userId / buckets，
+ *    每个桶的数量保持在紧凑编码（listpack）的上限以内，每个用户只占几个字节
+ * 新增秒杀券时根据用户id的分布选择：用户id稠密、下单人数（不超过库存）多时位图更小，否则使用chunk
+ * 选择的方式写入秒杀券元数据的 dedupe buckets 字段，lua脚本（seckill_lib.lua）与这里按同样的方式读写，
+ * 存储方式的名称与chunk的key格式由SeckillScripts按这里的常量传给lua脚本
+ *
+ * @Author vita
+ * @Date 2023/01/11 10:00
+ */
+@Slf4j
+@Component
+public class SeckillBuyers {
+
+    public static final String SET = "set";
+    public static final String BITMAP = "bitmap";
+    public static final String CHUNK = "chunk";
+    /**
+     * chunk方式每个桶的key为 orderKey:<桶>
+     */
+    public static final String CHUNK_SEPARATOR = ":";
+    /**
+     * 每个桶期望的用户数，小于hash-max-listpack-entries（默认128），留出余量
+     */
+    private static final int CHUNK_SIZE = 64;
+    /**
+     * hash-max-listpack-entries的默认值，桶中的用户数超过后改为普通hash编码，每个用户占用的内存大幅增加
+     */
+    private static final int CHUNK_LISTPACK_ENTRIES = 128;
+    /**
+     * chunk方式每个用户大约占用的字节数，包括分摊的key的开销
+     */
+    private static final int CHUNK_BYTES_PER_BUYER = 8;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private SeckillShards seckillShards;
+
+    /**
+     * auto 根据用户id分布自动选择，也可以固定为 set/bitmap/chunk
+     */
+    @Value("${hmdp.seckill.buyer-store:auto}")
+    private String buyerStore;
+
+    /**
+     * 秒杀券的存储方式，创建后不会再变化，缓存在本地
+     */
+    private final Map<Long, Store> stores = new ConcurrentHashMap<>();
+
+    public static class Store {
+        private final String dedupe;
+        private final int buckets;
+
+        public Store(String dedupe, int buckets) {
+            this.dedupe = dedupe;
+            this.buckets = buckets;
+        }
+
+        public String getDedupe() {
+            return dedupe;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+    }
+
+    /**
+     * 为新的秒杀券选择存储方式
+     * chunk的桶数只在创建时按库存计算，之后不会调整：调整桶数需要迁移已下单用户，迁移期间的下单无法保证一人一单
+     * 补充的库存超过桶数*CHUNK_LISTPACK_ENTRIES后桶会变为普通hash编码，只是占用更多内存，一人一单仍然准确
+     * @param stock 库存，即最多的下单用户数
+     * @param shardCount 分片数，每个分片单独存储
+     */
+    public Store choose(int stock, int shardCount) {
+        int buckets = Math.max(1, (stock / shardCount + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (!"auto".equals(buyerStore)) {
+            return new Store(buyerStore, buckets);
+        }
+        Map<String, Object> stats = userService.getMap(Wrappers.<User>query().select("MAX(id) AS max_id"));
+        Object maxId = stats == null ? null : stats.get("max_id");
+        long max = maxId == null ? 0 : ((Number) maxId).longValue();
+        // 位图的偏移量最大为2^32-1，注册的新用户id会继续增长，留出一倍的余量
+        long bitmapBytes = max / 8 * shardCount;
+        long chunkBytes = (long) stock * CHUNK_BYTES_PER_BUYER;
+        String dedupe = max * 2 < (1L << 32) && bitmapBytes <= chunkBytes ? BITMAP : CHUNK;
+        log.info("秒杀券已下单用户存储方式 {}，最大用户id {}，库存 {}，预计位图 {} 字节，chunk {} 字节",
+                dedupe, max, stock, bitmapBytes, chunkBytes);
+        return new Store(dedupe, buckets);
+    }
+
+    /**
+     * 补充库存后检查chunk方式的桶是否还能保持紧凑编码，超出时只记录日志
+     * @param stock 补充后数据库中的库存
+     */
+    public void checkCapacity(Long voucherId, int stock) {
+        Store store = storeOf(voucherId);
+        if (!CHUNK.equals(store.dedupe)) {
+            return;
+        }
+        try {
+            // 已下单用户数，加上剩余库存，就是最多的下单用户数
+            long buyers = count(voucherId) + stock;
+            long perBucket = buyers / ((long) store.buckets * seckillShards.shardCount(voucherId));
+            if (perBucket > CHUNK_LISTPACK_ENTRIES) {
+                log.warn("秒杀券 {} 补充库存后每个桶约 {} 个用户，超过紧凑编码的上限 {}，已下单用户会占用更多内存",
+                        voucherId, perBucket, CHUNK_LISTPACK_ENTRIES);
+            }
+        } catch (Exception e) {
+            // 只是检查，不影响补充库存
+            log.warn("检查秒杀券 {} 已下单用户的存储容量失败", voucherId, e);
+        }
+    }
+
+    public Store storeOf(Long voucherId) {
+        return stores.computeIfAbsent(voucherId, id -> {
+            List<Object> meta = stringRedisTemplate.opsForHash()
+                    .multiGet(SECKILL_META_KEY + id, Arrays.asList("dedupe", "buckets"));
+            return meta.get(0) == null ? new Store(SET, 1)
+                    : new Store(meta.get(0).toString(), Integer.parseInt(meta.get(1).toString()));
+        });
+    }
+
+    /**
+     * 已下单用户数
+     */
+    public long count(Long voucherId) {
+        Store store = storeOf(voucherId);
+        long count = 0;
+        for (String orderKey : seckillShards.orderKeys(voucherId)) {
+            if (BITMAP.equals(store.dedupe)) {
+                Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                        connection.bitCount(orderKey.getBytes(StandardCharsets.UTF_8)));
+                count += bits == null ? 0 : bits;
+            } else if (CHUNK.equals(store.dedupe)) {
+                List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < store.buckets; i++) {
+                        connection.hLen(chunkKey(orderKey, i).getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+                for (Object size : sizes) {
+                    count += (Long) size;
+                }
+            } else {
+                Long size = stringRedisTemplate.opsForSet().size(orderKey);
+                count += size == null ? 0 : size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 所有已下单用户
+     */
+    @SuppressWarnings("unchecked")
+    public Set<Long> members(Long voucherId) {
+        Store store = storeOf(voucherId);
+        Set<Long> users = new HashSet<>();
+        for (String orderKey : seckillShards.orderKeys(voucherId)) {
+            if (BITMAP.equals(store.dedupe)) {
+                byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                        connection.get(orderKey.getBytes(StandardCharsets.UTF_8)));
+                for (int i = 0; bitmap != null && i < bitmap.length; i++) {
+                    for (int bit = 0; bit < 8; bit++) {
+                        // 偏移量0是第一个字节的最高位
+                        if ((bitmap[i] & (0x80 >>> bit)) != 0) {
+                            users.add((long) i * 8 + bit);
+                        }
+                    }
+                }
+            } else if (CHUNK.equals(store.dedupe)) {
+                List<Object> chunks = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < store.buckets; i++) {
+                        connection.hKeys(chunkKey(orderKey, i).getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+                for (int i = 0; i < chunks.size(); i++) {
+                    for (Object field : (Set<Object>) chunks.get(i)) {
+                        users.add(Long.parseLong(field.toString()) * store.buckets + i);
+                    }
+                }
+            } else {
+                Set<String> members = stringRedisTemplate.opsForSet().members(orderKey);
+                if (members != null) {
+                    members.forEach(member -> users.add(Long.valueOf(member)));
+                }
+            }
+        }
+        return users;
+    }
+
+    public void add(Long voucherId, Long userId) {
+        Store store = storeOf(voucherId);
+        String orderKey = seckillShards.orderKey(voucherId, userId);
+        if (BITMAP.equals(store.dedupe)) {
+            stringRedisTemplate.opsForValue().setBit(orderKey, userId, true);
+        } else if (CHUNK.equals(store.dedupe)) {
+            stringRedisTemplate.opsForHash().putIfAbsent(chunkKey(orderKey, (int) (userId % store.buckets)),
+                    String.valueOf(userId / store.buckets), "1");
+        } else {
+            stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+        }
+    }
+
+    public void remove(Long voucherId, Long userId) {
+        Store store = storeOf(voucherId);
+        String orderKey = seckillShards.orderKey(voucherId, userId);
+        if (BITMAP.equals(store.dedupe)) {
+            stringRedisTemplate.opsForValue().setBit(orderKey, userId, false);
+        } else if (CHUNK.equals(store.dedupe)) {
+            stringRedisTemplate.opsForHash().delete(chunkKey(orderKey, (int) (userId % store.buckets)),
+                    String.valueOf(userId / store.buckets));
+        } else {
+            stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        }
+    }
+
+    private static String chunkKey(String orderKey, int bucket) {
+        return orderKey + CHUNK_SEPARATOR + bucket;
+    }
+}
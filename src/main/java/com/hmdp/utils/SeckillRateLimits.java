@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import cn.hutool.core.collection.ListUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀令牌桶的配置，在lua脚本中与库存判断一起执行
+ * 1. 每个秒杀券一个桶，每秒放入 剩余库存 * stock-multiplier 个令牌，剩余库存越少放行的请求越少
+ * 2. 每个用户一个桶，每秒放入 user-rate 个令牌，最多攒 user-burst 个
+ * 配置保存在 seckill:rate:config 中，运行时修改后通知所有节点重新加载，脚本的参数由本地的配置传入
+ * 租约模式在本地卖出，不执行秒杀脚本，卖出前单独执行一次限流脚本
+ *
+ * @Author vita
+ * @Date 2023/01/09 10:00
+ */
+@Slf4j
+@Component
+public class SeckillRateLimits {
+
+    private static final String STOCK_MULTIPLIER = "stock-multiplier";
+    private static final String USER_RATE = "user-rate";
+    private static final String USER_BURST = "user-burst";
+    private static final List<String> FIELDS = Arrays.asList(STOCK_MULTIPLIER, USER_RATE, USER_BURST);
+    private static final DefaultRedisScript<Long> RATE_SCRIPT;
+
+    static {
+        RATE_SCRIPT = SeckillScripts.load("seckill_rate.lua", Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * redis中没有配置时使用的默认值，小于等于0时不限流
+     */
+    @Value("${hmdp.seckill.rate-limit.stock-multiplier:10}")
+    private String defaultStockMultiplier;
+    @Value("${hmdp.seckill.rate-limit.user-rate:1}")
+    private String defaultUserRate;
+    @Value("${hmdp.seckill.rate-limit.user-burst:3}")
+    private String defaultUserBurst;
+
+    /**
+     * 脚本参数 stock-multiplier user-rate user-burst
+     */
+    private volatile String[] args;
+    private Counter shedByVoucher;
+    private Counter shedByUser;
+
+    @PostConstruct
+    private void init() {
+        args = new String[]{defaultStockMultiplier, defaultUserRate, defaultUserBurst};
+        shedByVoucher = meterRegistry.counter("seckill.shed", "bucket", "voucher");
+        shedByUser = meterRegistry.counter("seckill.shed", "bucket", "user");
+        try {
+            for (int i = 0; i < FIELDS.size(); i++) {
+                stringRedisTemplate.opsForHash().putIfAbsent(SECKILL_RATE_CONFIG_KEY, FIELDS.get(i), args[i]);
+            }
+            load();
+        } catch (Exception e) {
+            log.warn("加载秒杀限流配置失败，使用默认配置", e);
+        }
+    }
+
+    /**
+     * 从redis重新加载配置，收到配置修改的通知时调用
+     */
+    public void load() {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_RATE_CONFIG_KEY, new ArrayList<>(FIELDS));
+        String[] loaded = args.clone();
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (values.get(i) != null) {
+                loaded[i] = values.get(i).toString();
+            }
+        }
+        args = loaded;
+        log.info("秒杀限流配置 {}", config());
+    }
+
+    /**
+     * 修改配置并通知所有节点
+     */
+    public void update(Map<String, String> config) {
+        Map<String, String> valid = new HashMap<>();
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            if (!FIELDS.contains(entry.getKey())) {
+                throw new IllegalArgumentException("不支持的限流配置 " + entry.getKey());
+            }
+            // 检查是否为数字
+            Double.parseDouble(entry.getValue());
+            valid.put(entry.getKey(), entry.getValue());
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_RATE_CONFIG_KEY, valid);
+        stringRedisTemplate.convertAndSend(SECKILL_RATE_CHANNEL, "reload");
+    }
+
+    public Map<String, String> config() {
+        Map<String, String> config = new HashMap<>();
+        String[] current = args;
+        for (int i = 0; i < FIELDS.size(); i++) {
+            config.put(FIELDS.get(i), current[i]);
+        }
+        return config;
+    }
+
+    /**
+     * 传给秒杀脚本的限流参数
+     */
+    public String[] args() {
+        return args;
+    }
+
+    /**
+     * 租约模式下卖出前扣减令牌，秒杀券的桶按 redis剩余库存 + 本节点租约剩余库存 计算速率
+     * @param leased 本节点租约中还没卖出的库存
+     * @return 0放行 5秒杀券的桶 6用户的桶，与秒杀脚本的返回值相同
+     */
+    public int take(Long voucherId, Long userId, int leased) {
+        String[] current = args;
+        if (Double.parseDouble(current[0]) <= 0 && Double.parseDouble(current[1]) <= 0) {
+            // 都不限流，不需要访问redis
+            return 0;
+        }
+        Long result = stringRedisTemplate.execute(RATE_SCRIPT,
+                ListUtil.of(SECKILL_STOCK_KEY + voucherId, SECKILL_RATE_KEY + voucherId,
+                        SECKILL_RATE_KEY + voucherId + ":" + userId),
+                current[0], current[1], current[2], String.valueOf(leased));
+        return result == null ? 0 : result.intValue();
+    }
+
+    /**
+     * 记录被限流的请求
+     * @param result 脚本返回值，5为秒杀券的桶，6为用户的桶
+     */
+    public void recordShed(int result) {
+        if (result == 5) {
+            shedByVoucher.increment();
+        } else {
+            shedByUser.increment();
+        }
+    }
+}
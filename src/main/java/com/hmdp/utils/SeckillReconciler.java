@@ -0,0 +1,351 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀数据对账
+ * 后台低优先级线程按voucher_id分页（keyset）扫描最近的秒杀券，每次扫描一页，下次从上次的位置继续：
+ * 1. 先比较redis已下单用户数与数据库订单数，相同时只检查库存
+ * 2. 不同时再按订单id分页读取用户，找出两边不一致的用户
+ *    - 数据库中有订单、redis中没有记录的用户，补回已下单集合
+ *    - redis中有记录、数据库中没有订单的用户，连续两次对账都缺失（超过了消息认领的时间）时重新投递订单，
+ *      重新投递后仍然缺失（如数据库库存不足被跳过）时移出已下单集合，并记录下来需要人工处理
+ *    - 用户的订单所在的stream中还有没处理完的消息，或者差值比上次对账时小（订单还在写入）时，订单可能还在排队，
+ *      这次不重新投递也不移出，等下次对账；重新投递的订单与原订单都写入时，创建订单时按一人一单只保留一个
+ * 3. 用户数一致但库存不一致，并且连续两次对账的差值相同时，把redis库存改为数据库中的值
+ * 多个节点中只有拿到锁的节点执行对账
+ *
+ * @Author vita
+ * @Date 2023/01/08 10:00
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final DefaultRedisScript<Long> RECONCILE_STOCK_SCRIPT;
+
+    static {
+        RECONCILE_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_reconcile_stock.lua"));
+        RECONCILE_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillShards seckillShards;
+    @Resource
+    private SeckillBuyers seckillBuyers;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.reconcile.interval-seconds:60}")
+    private long intervalSeconds;
+    /**
+     * 每次对账的秒杀券数量，以及读取订单时每页的数量
+     */
+    @Value("${hmdp.seckill.reconcile.page-size:100}")
+    private int pageSize;
+    /**
+     * 每对完一个秒杀券后暂停的时间，避免影响秒杀
+     */
+    @Value("${hmdp.seckill.reconcile.pause-millis:50}")
+    private long pauseMillis;
+    /**
+     * 结束超过这个时间的秒杀券不再对账
+     */
+    @Value("${hmdp.seckill.reconcile.retention-hours:24}")
+    private long retentionHours;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-reconciler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * 下一次从哪个秒杀券开始扫描
+     */
+    private long lastVoucherId;
+    /**
+     * 上次对账时redis中有记录、数据库中没有订单的用户
+     */
+    private final Map<Long, Set<Long>> missing = new HashMap<>();
+    /**
+     * 已经重新投递过订单的用户
+     */
+    private final Map<Long, Set<Long>> requeued = new HashMap<>();
+    /**
+     * 上次对账时的库存差值
+     */
+    private final Map<Long, Long> stockDrift = new HashMap<>();
+    /**
+     * 最近一轮对账中每个秒杀券的redis用户数减数据库订单数
+     */
+    private final Map<Long, Long> orderDrift = new ConcurrentHashMap<>();
+    private final AtomicLong stockDriftTotal = new AtomicLong();
+
+    private Counter restored;
+    private Counter requeuedOrders;
+    private Counter dropped;
+    private Counter stockRepaired;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        restored = meterRegistry.counter("seckill.reconcile.repair", "type", "buyer-restored");
+        requeuedOrders = meterRegistry.counter("seckill.reconcile.repair", "type", "order-requeued");
+        dropped = meterRegistry.counter("seckill.reconcile.repair", "type", "buyer-dropped");
+        stockRepaired = meterRegistry.counter("seckill.reconcile.repair", "type", "stock");
+        meterRegistry.gauge("seckill.reconcile.drift", Tags.of("type", "orders"),
+                orderDrift, m -> m.values().stream().mapToLong(Long::longValue).sum());
+        meterRegistry.gauge("seckill.reconcile.drift", Tags.of("type", "stock"),
+                stockDriftTotal);
+        scheduler.scheduleWithFixedDelay(this::reconcile, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reconcile() {
+        RLock lock = redissonClient.getLock(LOCK_CACHE_KEY + "seckill:reconcile");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 按voucher_id分页：where voucher_id > ? order by voucher_id limit ?
+            List<SeckillVoucher> vouchers = seckillVoucherService.lambdaQuery()
+                    .gt(SeckillVoucher::getVoucherId, lastVoucherId)
+                    .gt(SeckillVoucher::getEndTime, LocalDateTime.now().minusHours(retentionHours))
+                    .orderByAsc(SeckillVoucher::getVoucherId)
+                    .last("limit " + pageSize)
+                    .list();
+            // 扫描到最后一页后从头开始
+            lastVoucherId = vouchers.size() < pageSize ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+            for (SeckillVoucher voucher : vouchers) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                try {
+                    reconcile(voucher);
+                } catch (Exception e) {
+                    log.error("秒杀券 {} 对账异常", voucher.getVoucherId(), e);
+                }
+                Thread.sleep(pauseMillis);
+            }
+            stockDriftTotal.set(stockDrift.values().stream().mapToLong(Long::longValue).sum());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("秒杀对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher) throws InterruptedException {
+        Long voucherId = voucher.getVoucherId();
+        // 先读redis再读数据库，redis中的用户数只会多于数据库中的订单数（订单还在stream中）
+        long buyers = seckillBuyers.count(voucherId);
+        int shardCount = seckillShards.shardCount(voucherId);
+        String stock = shardCount == 1
+                ? stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId) : null;
+        // 超时取消的订单已经从redis中移除
+        int orders = voucherOrderService.lambdaQuery()
+                .eq(VoucherOrder::getVoucherId, voucherId)
+                .ne(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
+                .count();
+        Long lastDrift = orderDrift.put(voucherId, buyers - orders);
+        if (buyers == orders) {
+            missing.remove(voucherId);
+            requeued.remove(voucherId);
+            reconcileStock(voucherId, stock);
+            return;
+        }
+        stockDrift.remove(voucherId);
+
+        Set<Long> dbUsers = loadOrderUsers(voucherId);
+        Set<Long> redisUsers = seckillBuyers.members(voucherId);
+
+        // 数据库中有订单，redis中没有记录
+        for (Long userId : dbUsers) {
+            if (!redisUsers.contains(userId)) {
+                seckillBuyers.add(voucherId, userId);
+                restored.increment();
+            }
+        }
+        // redis中有记录，数据库中没有订单
+        Set<Long> lastMissing = missing.getOrDefault(voucherId, new HashSet<>());
+        Set<Long> voucherRequeued = requeued.computeIfAbsent(voucherId, id -> new HashSet<>());
+        Set<Long> nowMissing = new HashSet<>();
+        // 差值在缩小，消费者还在创建订单
+        boolean draining = lastDrift != null && buyers - orders < lastDrift;
+        Map<String, Boolean> backlogs = new HashMap<>();
+        for (Long userId : redisUsers) {
+            if (dbUsers.contains(userId)) {
+                continue;
+            }
+            nowMissing.add(userId);
+            if (!lastMissing.contains(userId)) {
+                continue;
+            }
+            if (draining || backlogs.computeIfAbsent(streamKey(userId, shardCount), this::backlogged)) {
+                // 订单可能还在stream中排队，等下次对账
+                continue;
+            }
+            if (voucherRequeued.add(userId)) {
+                requeue(voucherId, userId, shardCount);
+            } else {
+                seckillBuyers.remove(voucherId, userId);
+                voucherRequeued.remove(userId);
+                nowMissing.remove(userId);
+                dropped.increment();
+                log.error("秒杀券 {} 用户 {} 的订单重新投递后仍未创建，已移出已下单集合，需要人工处理", voucherId, userId);
+            }
+        }
+        voucherRequeued.retainAll(nowMissing);
+        if (nowMissing.isEmpty()) {
+            missing.remove(voucherId);
+        } else {
+            missing.put(voucherId, nowMissing);
+            log.warn("秒杀券 {} 有 {} 个用户在redis中已下单但没有订单", voucherId, nowMissing.size());
+        }
+    }
+
+    /**
+     * 按订单id分页读取秒杀券的所有下单用户（不包括已取消的订单）：where voucher_id = ? and id > ? order by id limit ?
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Long> loadOrderUsers(Long voucherId) throws InterruptedException {
+        Set<Long> users = new HashSet<>();
+        long lastOrderId = 0;
+        while (true) {
+            List<VoucherOrder> page = voucherOrderService.lambdaQuery()
+                    .select(VoucherOrder::getId, VoucherOrder::getUserId)
+                    .eq(VoucherOrder::getVoucherId, voucherId)
+                    .ne(VoucherOrder::getStatus, VoucherOrder.STATUS_CANCELLED)
+                    .gt(VoucherOrder::getId, lastOrderId)
+                    .orderByAsc(VoucherOrder::getId)
+                    .last("limit " + pageSize)
+                    .list();
+            for (VoucherOrder order : page) {
+                users.add(order.getUserId());
+            }
+            if (page.size() < pageSize) {
+                return users;
+            }
+            lastOrderId = page.get(page.size() - 1).getId();
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    /**
+     * 用户的订单写入的stream，分片的券为用户主分片的stream
+     */
+    private String streamKey(Long userId, int shardCount) {
+        return shardCount == 1 ? SECKILL_STREAM_KEY : SeckillShards.streamKey(seckillShards.homeShard(userId, shardCount));
+    }
+
+    /**
+     * stream中是否还有没处理完的订单消息
+     * 消费者确认后会删除消息，stream的长度就是还没读取和已读取未确认（pending）的消息数
+     */
+    private boolean backlogged(String streamKey) {
+        Long length = stringRedisTemplate.opsForStream().size(streamKey);
+        return length != null && length > 0;
+    }
+
+    /**
+     * 用户原来的订单id已经丢失，用新的订单id重新写入用户订单所在的stream，由消费者创建订单
+     */
+    private void requeue(Long voucherId, Long userId, int shardCount) {
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(redisIdWorker.nextId("order")));
+        stringRedisTemplate.opsForStream().add(streamKey(userId, shardCount), order);
+        requeuedOrders.increment();
+        log.warn("秒杀券 {} 用户 {} 没有订单，重新投递", voucherId, userId);
+    }
+
+    /**
+     * 用户数与订单数相同时，redis库存应该与数据库库存相同
+     * 分片和租约模式下redis中的库存不是全部库存，不修正
+     */
+    private void reconcileStock(Long voucherId, String stock) {
+        if (stock == null || seckillStockLeases.enabled()) {
+            stockDrift.remove(voucherId);
+            return;
+        }
+        // 分页查询时读到的库存可能已经过期，在读取redis之后重新查询
+        Integer dbStock = seckillVoucherService.getById(voucherId).getStock();
+        long drift = Long.parseLong(stock) - dbStock;
+        if (drift == 0) {
+            stockDrift.remove(voucherId);
+            return;
+        }
+        Long last = stockDrift.put(voucherId, drift);
+        if (last == null || last != drift) {
+            // 可能正在补充库存，等下次对账确认
+            return;
+        }
+        Long result = stringRedisTemplate.execute(RECONCILE_STOCK_SCRIPT,
+                Collections.singletonList(SECKILL_STOCK_KEY + voucherId), stock, dbStock.toString());
+        if (result != null && result == 1) {
+            stockDrift.remove(voucherId);
+            stockRepaired.increment();
+            log.warn("秒杀券 {} redis库存 {} 与数据库 {} 不一致，已修正", voucherId, stock, dbStock);
+        }
+    }
+}
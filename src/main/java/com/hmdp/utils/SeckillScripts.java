@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 秒杀相关lua脚本的加载
+ * 令牌桶、已下单用户的读写等共用函数只写在seckill_lib.lua中，加载时拼接在各脚本之前；
+ * 已下单用户存储方式的名称、chunk的key格式由SeckillBuyers中的常量生成，lua与java使用同一份定义
+ *
+ * @Author vita
+ * @Date 2023/01/17 11:00
+ */
+public final class SeckillScripts {
+
+    private static final String LIB = "local BUYERS_SET = \"" + SeckillBuyers.SET + "\"\n"
+            + "local BUYERS_BITMAP = \"" + SeckillBuyers.BITMAP + "\"\n"
+            + "local BUYERS_CHUNK = \"" + SeckillBuyers.CHUNK + "\"\n"
+            + "local CHUNK_SEPARATOR = \"" + SeckillBuyers.CHUNK_SEPARATOR + "\"\n"
+            + read("seckill_lib.lua") + "\n";
+
+    private SeckillScripts() {
+    }
+
+    /**
+     * 加载classpath下的脚本，共用的函数拼接在脚本之前
+     */
+    public static <T> DefaultRedisScript<T> load(String location, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptText(LIB + read(location));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private static String read(String location) {
+        try {
+            return StreamUtils.copyToString(new ClassPathResource(location).getInputStream(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("读取lua脚本 " + location + " 失败", e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 热门秒杀券的库存拆分到多个key上，key中使用hash tag {sk<i>}，同一个分片的库存、已下单用户、订单stream在同一个slot，
+ * 不同分片可以分布在集群的不同节点上
+ * 每个用户有一个固定的主分片，已下单用户只记录在主分片中，保证一人一单的判断是准确的
+ *
+ * @Author vita
+ * @Date 2023/01/06 10:00
+ */
+@Component
+public class SeckillShards {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 新增秒杀券时拆分的分片数，小于2时不分片
+     */
+    @Value("${hmdp.seckill.stock-shards:0}")
+    private int stockShards;
+
+    /**
+     * 秒杀券的分片数，创建后不会再变化，缓存在本地
+     */
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    public boolean enabled() {
+        return stockShards > 1;
+    }
+
+    /**
+     * 所有分片的订单stream，消费者需要全部读取
+     * 分片数取配置与所有已创建秒杀券用过的分片数中最大的，调小配置后已有秒杀券的分片stream仍然有消费者
+     */
+    public List<String> streamKeys() {
+        int maxShards = stockShards;
+        Set<String> counts = stringRedisTemplate.opsForSet().members(SECKILL_SHARD_COUNTS_KEY);
+        if (counts != null) {
+            for (String count : counts) {
+                maxShards = Math.max(maxShards, Integer.parseInt(count));
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; maxShards > 1 && i < maxShards; i++) {
+            keys.add(streamKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * @return 秒杀券的分片数，1代表未分片，使用 seckill:stock:<id>
+     */
+    public int shardCount(Long voucherId) {
+        return shardCounts.computeIfAbsent(voucherId, id -> {
+            String count = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return count == null ? 1 : Integer.parseInt(count);
+        });
+    }
+
+    public int homeShard(Long userId, int shardCount) {
+        return Math.floorMod(Long.hashCode(userId), shardCount);
+    }
+
+    /**
+     * 秒杀券的已下单用户集合，未分片时只有一个
+     */
+    public List<String> orderKeys(Long voucherId) {
+        int shardCount = shardCount(voucherId);
+        if (shardCount == 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户所在的已下单集合
+     */
+    public String orderKey(Long voucherId, Long userId) {
+        int shardCount = shardCount(voucherId);
+        return shardCount == 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, homeShard(userId, shardCount));
+    }
+
+    public static String tag(int shard) {
+        return "{sk" + shard + "}:";
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + tag(shard) + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + tag(shard) + voucherId;
+    }
+
+    public static String metaKey(Long voucherId, int shard) {
+        return SECKILL_META_KEY + tag(shard) + voucherId;
+    }
+
+    public static String cancelledKey(Long voucherId, int shard) {
+        return ORDER_CANCELLED_KEY + tag(shard) + voucherId;
+    }
+
+    public static String rateKey(Long voucherId, int shard) {
+        return SECKILL_RATE_KEY + tag(shard) + voucherId;
+    }
+
+    public static String rateKey(Long voucherId, Long userId, int shard) {
+        return SECKILL_RATE_KEY + tag(shard) + voucherId + ":" + userId;
+    }
+
+    public static String streamKey(int shard) {
+        return SECKILL_STREAM_KEY + ":{sk" + shard + "}";
+    }
+
+    /**
+     * 新增秒杀券时写入库存，开启分片时平均拆分到各个分片
+     */
+    public void initStock(Long voucherId, int stock) {
+        if (!enabled()) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        for (int i = 0; i < stockShards; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(share(stock, i, stockShards)));
+        }
+        // 先记录用过的分片数，再让秒杀券使用分片
+        stringRedisTemplate.opsForSet().add(SECKILL_SHARD_COUNTS_KEY, String.valueOf(stockShards));
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(stockShards));
+        shardCounts.put(voucherId, stockShards);
+    }
+
+    /**
+     * 写入秒杀券的元数据：开始、结束时间（毫秒时间戳）与已下单用户的存储方式，由lua脚本检查
+     * 每人限购一单，与订单表的一人一单一致，不单独保存限购数
+     * 分片的券在每个分片上写一份，与分片的其他key在同一个slot
+     * 需要在initStock之后调用
+     * @param buyers 已下单用户的存储方式，只在新增秒杀券时写入，为null时保留原来的方式
+     */
+    public void initMeta(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, SeckillBuyers.Store buyers) {
+        Map<String, String> meta = new HashMap<>();
+        meta.put("begin", String.valueOf(toMillis(beginTime)));
+        meta.put("end", String.valueOf(toMillis(endTime)));
+        if (buyers != null) {
+            meta.put("dedupe", buyers.getDedupe());
+            meta.put("buckets", String.valueOf(buyers.getBuckets()));
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+        int shardCount = shardCount(voucherId);
+        for (int i = 0; shardCount > 1 && i < shardCount; i++) {
+            stringRedisTemplate.opsForHash().putAll(metaKey(voucherId, i), meta);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 补充库存，分片的券平均加到各个分片
+     */
+    public void addStock(Long voucherId, int amount) {
+        int shardCount = shardCount(voucherId);
+        if (shardCount == 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, amount);
+            return;
+        }
+        for (int i = 0; i < shardCount; i++) {
+            int share = share(amount, i, shardCount);
+            if (share > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), share);
+            }
+        }
+    }
+
+    /**
+     * 余数分给前面的分片
+     */
+    private static int share(int total, int shard, int shardCount) {
+        return total / shardCount + (shard < total % shardCount ? 1 : 0);
+    }
+}
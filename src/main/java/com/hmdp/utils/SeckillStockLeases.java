@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.ListUtil;
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisServerCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存租约
+ * 节点一次从 seckill:stock:<id> 租出一段库存（lease-size个），在本地用原子计数卖出，
+ * 本地记录已下单用户做第一次去重，卖出的订单攒一批后再一次写入redis的已下单集合和订单stream
+ * 1. 租约只会从redis扣减不超过剩余库存的数量，各节点卖出的总数不会超过库存
+ * 2. 同一个用户在两个节点同时下单时，提交时只有先写入已下单集合的订单会进入stream，另一个订单作废，库存还给租约
+ * 3. 租约一段时间没有卖出、秒杀结束或节点关闭时，把没卖完的库存还给redis
+ * 卖出的订单先写入本地的订单日志（OrderJournal），提交后推进检查点，节点宕机重启后重新提交日志中未提交的订单
+ * 与秒杀脚本保持一致：秒杀时间取自redis中的秒杀券元数据，按redis服务器的时钟判断（本地定时校准与redis的时钟差），
+ * 卖出前执行限流脚本（SeckillRateLimits），每个请求仍会访问一次redis，但不需要竞争库存
+ *
+ * @Author vita
+ * @Date 2023/01/07 10:00
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    private static final int FLUSH_BATCH = 500;
+    /**
+     * 校准redis时钟的间隔
+     */
+    private static final long CLOCK_SYNC_MILLIS = 1000;
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> FLUSH_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        FLUSH_SCRIPT = SeckillScripts.load("seckill_lease_flush.lua", List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillRateLimits seckillRateLimits;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private OrderStatuses orderStatuses;
+    @Resource
+    private OrderJournal orderJournal;
+
+    /**
+     * 每次租出的库存数量，小于1时不使用租约
+     */
+    @Value("${hmdp.seckill.lease-size:0}")
+    private int leaseSize;
+    /**
+     * 卖出的订单多久提交一次
+     */
+    @Value("${hmdp.seckill.lease-flush-millis:20}")
+    private long flushMillis;
+    /**
+     * 租约多久没有卖出就把剩余库存还给redis，让其他节点继续卖
+     */
+    @Value("${hmdp.seckill.lease-idle-seconds:5}")
+    private long idleSeconds;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-lease-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Counter duplicates;
+    /**
+     * redis服务器时间 - 本地时间
+     */
+    private volatile long clockOffsetMillis;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled()) {
+            return;
+        }
+        duplicates = meterRegistry.counter("seckill.lease.duplicate");
+        syncClock();
+        scheduler.scheduleWithFixedDelay(this::syncClock, CLOCK_SYNC_MILLIS, CLOCK_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        meterRegistry.gauge("seckill.lease.remaining", leases,
+                m -> m.values().stream().mapToInt(lease -> lease.remaining.get()).sum());
+        if (orderJournal.enabled()) {
+            recover(orderJournal.open());
+        }
+        scheduler.scheduleWithFixedDelay(this::flushAll, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 日志中上次没有提交的订单放回租约，由flusher重新提交
+     * 宕机前已经提交过的订单在脚本中根据订单状态跳过
+     */
+    private void recover(List<VoucherOrder> voucherOrders) {
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Lease lease = leases.computeIfAbsent(voucherOrder.getVoucherId(), this::newLease);
+            lease.buyers.add(voucherOrder.getUserId());
+            lease.sold.add(voucherOrder);
+        }
+    }
+
+    public boolean enabled() {
+        return leaseSize > 0;
+    }
+
+    /**
+     * 用往返的中点估算与redis的时钟差，误差不超过往返时间的一半
+     */
+    private void syncClock() {
+        try {
+            long before = System.currentTimeMillis();
+            Long redisTime = stringRedisTemplate.execute((RedisCallback<Long>) RedisServerCommands::time);
+            long after = System.currentTimeMillis();
+            if (redisTime != null) {
+                clockOffsetMillis = redisTime - (before + after) / 2;
+            }
+        } catch (Exception e) {
+            log.warn("校准redis时钟失败，继续使用上次的时钟差 {}ms", clockOffsetMillis, e);
+        }
+    }
+
+    private long redisNow() {
+        return System.currentTimeMillis() + clockOffsetMillis;
+    }
+
+    /**
+     * 在本地租约中卖出一件
+     * @return 0成功 1库存不足 2重复下单 3未开始 4已结束 5/6被限流，与lua脚本的返回值相同
+     */
+    public int sell(Long voucherId, Long userId, long orderId) {
+        Lease lease = leases.computeIfAbsent(voucherId, this::newLease);
+        long now = redisNow();
+        if (lease.beginMillis != null && now < lease.beginMillis) {
+            return 3;
+        }
+        if (lease.endMillis != null && now > lease.endMillis) {
+            return 4;
+        }
+        int rate = seckillRateLimits.take(voucherId, userId, lease.remaining.get());
+        if (rate != 0) {
+            return rate;
+        }
+        if (!lease.buyers.add(userId)) {
+            return 2;
+        }
+        while (true) {
+            int n = lease.remaining.get();
+            if (n > 0) {
+                if (lease.remaining.compareAndSet(n, n - 1)) {
+                    VoucherOrder voucherOrder = new VoucherOrder();
+                    voucherOrder.setId(orderId);
+                    voucherOrder.setUserId(userId);
+                    voucherOrder.setVoucherId(voucherId);
+                    try {
+                        orderJournal.append(voucherOrder);
+                    } catch (Exception e) {
+                        lease.remaining.incrementAndGet();
+                        lease.buyers.remove(userId);
+                        throw e;
+                    }
+                    lease.sold.add(voucherOrder);
+                    lease.lastSoldAt = System.currentTimeMillis();
+                    return 0;
+                }
+                continue;
+            }
+            if (!refill(lease)) {
+                lease.buyers.remove(userId);
+                return 1;
+            }
+        }
+    }
+
+    /**
+     * 秒杀时间与脚本一样读取redis中的元数据，没有元数据的旧秒杀券不检查
+     */
+    private Lease newLease(Long voucherId) {
+        List<Object> meta = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_META_KEY + voucherId, Arrays.<Object>asList("begin", "end"));
+        if (meta.get(0) == null) {
+            return new Lease(voucherId, null, null);
+        }
+        return new Lease(voucherId, Long.valueOf(meta.get(0).toString()), Long.valueOf(meta.get(1).toString()));
+    }
+
+    /**
+     * 租约卖完后从redis再租一段，同一时间只有一个线程去租，其他线程等待结果
+     * @return 是否租到了库存
+     */
+    private boolean refill(Lease lease) {
+        synchronized (lease) {
+            if (lease.remaining.get() > 0) {
+                return true;
+            }
+            Long n = stringRedisTemplate.execute(LEASE_SCRIPT,
+                    Collections.singletonList(SECKILL_STOCK_KEY + lease.voucherId), String.valueOf(leaseSize));
+            if (n == null || n <= 0) {
+                return false;
+            }
+            lease.remaining.addAndGet(n.intValue());
+            return true;
+        }
+    }
+
+    private void flushAll() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            try {
+                flush(lease);
+                if (lease.endMillis != null && lease.endMillis < redisNow()) {
+                    // 秒杀已结束，归还剩余库存后不再需要本地记录的用户
+                    giveBack(lease);
+                    if (lease.sold.isEmpty()) {
+                        leases.remove(lease.voucherId, lease);
+                    }
+                } else if (now - lease.lastSoldAt > TimeUnit.SECONDS.toMillis(idleSeconds) && giveBack(lease) > 0) {
+                    // 其他节点可能已经标记售罄，归还后清除标记
+                    soldOutFlags.clear(lease.voucherId);
+                }
+            } catch (Exception e) {
+                log.error("提交秒杀券 {} 的租约订单异常", lease.voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 把卖出的订单写入已下单集合和订单stream，每次脚本最多提交FLUSH_BATCH个，失败的订单留到下次提交
+     */
+    private void flush(Lease lease) {
+        List<VoucherOrder> batch = new ArrayList<>();
+        VoucherOrder voucherOrder;
+        while ((voucherOrder = lease.sold.poll()) != null) {
+            batch.add(voucherOrder);
+            if (batch.size() == FLUSH_BATCH || lease.sold.isEmpty()) {
+                flush(lease, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(Lease lease, List<VoucherOrder> batch) {
+        List<String> args = new ArrayList<>(batch.size() * 2 + 2);
+        args.add(lease.voucherId.toString());
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL)));
+        for (VoucherOrder order : batch) {
+            args.add(order.getUserId().toString());
+            args.add(order.getId().toString());
+        }
+        List<?> rejected;
+        try {
+            rejected = stringRedisTemplate.execute(FLUSH_SCRIPT,
+                    ListUtil.of(SECKILL_ORDER_KEY + lease.voucherId, SECKILL_STREAM_KEY, ORDER_STATUS_KEY,
+                            SECKILL_META_KEY + lease.voucherId), args.toArray());
+        } catch (Exception e) {
+            lease.sold.addAll(batch);
+            throw e;
+        }
+        orderJournal.commit(batch);
+        if (rejected != null && !rejected.isEmpty()) {
+            // 用户已经在其他节点下单，这些订单作废，库存留在本地继续卖
+            lease.remaining.addAndGet(rejected.size());
+            duplicates.increment(rejected.size());
+            orderStatuses.publish(rejected);
+            log.warn("秒杀券 {} 有 {} 个订单的用户已在其他节点下单，订单作废 {}", lease.voucherId, rejected.size(), rejected);
+        }
+    }
+
+    /**
+     * 把租约剩余的库存还给redis
+     * @return 归还的数量
+     */
+    private int giveBack(Lease lease) {
+        int n = lease.remaining.getAndSet(0);
+        if (n <= 0) {
+            return 0;
+        }
+        try {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + lease.voucherId, n);
+        } catch (Exception e) {
+            lease.remaining.addAndGet(n);
+            throw e;
+        }
+        log.debug("秒杀券 {} 归还租约库存 {}", lease.voucherId, n);
+        return n;
+    }
+
+    /**
+     * 节点关闭时提交已卖出的订单，归还剩余库存
+     */
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        for (Lease lease : leases.values()) {
+            try {
+                flush(lease);
+                giveBack(lease);
+            } catch (Exception e) {
+                log.error("关闭时归还秒杀券 {} 的租约失败，剩余 {}，未提交订单 {}",
+                        lease.voucherId, lease.remaining.get(), lease.sold.size(), e);
+            }
+        }
+    }
+
+    private static class Lease {
+        private final Long voucherId;
+        /**
+         * 秒杀开始、结束时间，毫秒
+         */
+        private final Long beginMillis;
+        private final Long endMillis;
+        /**
+         * 已租到但还没卖出的库存
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+        /**
+         * 在本节点下过单的用户
+         */
+        private final Set<Long> buyers = ConcurrentHashMap.newKeySet();
+        /**
+         * 已卖出还未提交的订单
+         */
+        private final Queue<VoucherOrder> sold = new ConcurrentLinkedQueue<>();
+        private volatile long lastSoldAt = System.currentTimeMillis();
+
+        Lease(Long voucherId, Long beginMillis, Long endMillis) {
+            this.voucherId = voucherId;
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+        }
+    }
+}
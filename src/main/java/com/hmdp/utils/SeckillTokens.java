@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_TOKEN_KEY;
+
+/**
+ * 秒杀令牌
+ * 秒杀开始前issue-before-seconds内，用户先获取一个只属于自己和这张秒杀券的令牌，下单时带上令牌，
+ * 没有有效令牌的请求在本地直接拒绝，不生成订单id，也不执行lua脚本
+ * 秒杀开始后仍然签发，直到秒杀结束或已经售罄，开始后才进入页面的用户也可以购买剩余的库存
+ * 令牌格式为 过期时间.签名，签名为 HMAC-SHA256(voucherId:userId:过期时间)，各节点使用相同的密钥，校验不需要访问redis
+ * 过期时间为秒杀结束时间，同一个用户重复获取得到的令牌相同；获取令牌按用户限流
+ * 默认关闭，开启前客户端需要先调用 GET /voucher-order/seckill/{id}/token，下单时放在请求头seckill-token中
+ * 密钥只从环境变量 HMDP_SECKILL_TOKEN_SECRET 读取，开启令牌但没有配置密钥时启动失败
+ *
+ * @Author vita
+ * @Date 2023/01/14 10:00
+ */
+@Component
+public class SeckillTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+
+    /**
+     * 下单时是否校验令牌，需要客户端先获取令牌，默认关闭
+     */
+    @Value("${hmdp.seckill.token.enabled:false}")
+    private boolean enabled;
+    /**
+     * 签名密钥，所有节点必须相同，不要写在配置文件中
+     */
+    @Value("${hmdp.seckill.token.secret:}")
+    private String secret;
+    /**
+     * 秒杀开始前多久可以获取令牌
+     */
+    @Value("${hmdp.seckill.token.issue-before-seconds:300}")
+    private long issueBeforeSeconds;
+    /**
+     * 同一个用户获取同一张秒杀券令牌的最小间隔
+     */
+    @Value("${hmdp.seckill.token.issue-interval-seconds:1}")
+    private long issueIntervalSeconds;
+
+    /**
+     * 秒杀券 -> {开始时间, 结束时间}，创建后不会变化，缓存在本地
+     */
+    private final Map<Long, long[]> times = new ConcurrentHashMap<>();
+    /**
+     * Mac不是线程安全的，每个线程一个
+     */
+    private ThreadLocal<Mac> macs;
+    private Counter rejected;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("开启了秒杀令牌，但没有配置环境变量 HMDP_SECKILL_TOKEN_SECRET");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        rejected = meterRegistry.counter("seckill.token.rejected");
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * 为用户签发秒杀令牌
+     */
+    public Result issue(Long voucherId, Long userId) {
+        if (!enabled) {
+            return Result.fail("不需要秒杀令牌");
+        }
+        // 按用户限流，先于查询秒杀券
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(
+                SECKILL_TOKEN_KEY + voucherId + ":" + userId, "1", issueIntervalSeconds, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(first)) {
+            return Result.fail("请求过于频繁，请稍后再试");
+        }
+        long[] time = times.computeIfAbsent(voucherId, this::loadTimes);
+        if (time == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        long now = System.currentTimeMillis();
+        if (now < time[0] - TimeUnit.SECONDS.toMillis(issueBeforeSeconds)) {
+            return Result.fail("秒杀还未开始");
+        }
+        if (now > time[1]) {
+            return Result.fail("秒杀已经结束");
+        }
+        // 售罄标记在补充库存时清除，之后可以再次获取
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(time[1] + "." + sign(voucherId, userId, time[1]));
+    }
+
+    private long[] loadTimes(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null ? null : new long[]{toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime())};
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 校验下单请求带的令牌，只在本地计算，不访问redis
+     */
+    public boolean verify(Long voucherId, Long userId, String token) {
+        if (!enabled) {
+            return true;
+        }
+        int dot = token == null ? -1 : token.indexOf('.');
+        if (dot > 0) {
+            try {
+                long expiresAt = Long.parseLong(token.substring(0, dot));
+                if (expiresAt >= System.currentTimeMillis() && MessageDigest.isEqual(
+                        sign(voucherId, userId, expiresAt).getBytes(StandardCharsets.UTF_8),
+                        token.substring(dot + 1).getBytes(StandardCharsets.UTF_8))) {
+                    return true;
+                }
+            } catch (NumberFormatException ignored) {
+                // 格式不对，按无效令牌处理
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    private String sign(Long voucherId, Long userId, long expiresAt) {
+        byte[] data = (voucherId + ":" + userId + ":" + expiresAt).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(macs.get().doFinal(data));
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本节点的秒杀券售罄标记
+ * lua脚本返回库存不足时标记并广播给所有节点，之后的请求直接在本地拒绝，不再访问redis
+ * 新增秒杀券或补充库存时清除标记
+ * 标记最多保留ttl，防止清除标记与库存不足的结果同时发生时，标记一直残留
+ *
+ * @Author vita
+ * @Date 2023/01/05 10:00
+ */
+@Component
+public class SoldOutFlags {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:10}")
+    private long ttlSeconds;
+
+    /**
+     * 优惠券id -> 标记过期的时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            // 过期后放一个请求去redis确认，仍然售罄时会重新标记
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄，并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        set(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "+" + voucherId);
+    }
+
+    /**
+     * 只在本节点标记售罄，用于租约模式：本节点租不到库存时，其他节点的租约中可能还有库存
+     */
+    public void markSoldOutLocally(Long voucherId) {
+        set(voucherId);
+    }
+
+    /**
+     * 库存重置后清除标记，并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    /**
+     * 收到其他节点（包括自己）的广播，+id为售罄，-id为清除
+     */
+    public void onMessage(String message) {
+        Long voucherId = Long.valueOf(message.substring(1));
+        if (message.charAt(0) == '+') {
+            set(voucherId);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+
+    private void set(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+}
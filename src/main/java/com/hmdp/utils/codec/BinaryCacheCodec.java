@@ -0,0 +1,127 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.RedisData;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制编解码
+ * 格式：1字节标记 [8字节逻辑过期时间 [4字节重建耗时]] 1字节结构id 数据
+ * 注册过结构的类型按结构读写，其余类型的数据部分退化为json
+ * 不以标记开头的数据按原来的json格式解析，兼容切换前写入的缓存
+ *
+ * @Author vita
+ * @Date 2022/12/23 11:30
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte PLAIN = (byte) 0xB0;
+    private static final byte EXPIRING = (byte) 0xB1;
+    private static final byte EXPIRING_WITH_COST = (byte) 0xB2;
+    private static final int JSON_SCHEMA_ID = 0;
+
+    private final Map<Class<?>, BinarySchema<?>> schemasByType = new HashMap<>();
+    private final BinarySchema<?>[] schemasById = new BinarySchema<?>[256];
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    public BinaryCacheCodec(BinarySchema<?>... schemas) {
+        for (BinarySchema<?> schema : schemas) {
+            if (schema.id() <= JSON_SCHEMA_ID || schema.id() > 255 || schemasById[schema.id()] != null) {
+                throw new IllegalArgumentException("结构id不合法或重复：" + schema.id());
+            }
+            schemasByType.put(schema.type(), schema);
+            schemasById[schema.id()] = schema;
+        }
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        BinaryWriter writer = new BinaryWriter(256);
+        writer.writeByte(PLAIN);
+        writePayload(value, writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes[0] == PLAIN) {
+            return readPayload(bytes, new BinaryReader(bytes, 1), type);
+        }
+        if (bytes[0] == EXPIRING) {
+            return readPayload(bytes, new BinaryReader(bytes, 9), type);
+        }
+        if (bytes[0] == EXPIRING_WITH_COST) {
+            return readPayload(bytes, new BinaryReader(bytes, 13), type);
+        }
+        return jsonCodec.decode(bytes, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, long expireMillis, long rebuildMillis) {
+        BinaryWriter writer = new BinaryWriter(256);
+        if (rebuildMillis > 0) {
+            writer.writeByte(EXPIRING_WITH_COST);
+            writer.writeFixedLong(expireMillis);
+            writer.writeFixedInt((int) Math.min(rebuildMillis, Integer.MAX_VALUE));
+        } else {
+            writer.writeByte(EXPIRING);
+            writer.writeFixedLong(expireMillis);
+        }
+        writePayload(value, writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        if (bytes[0] == PLAIN) {
+            // 切换缓存策略前写入的普通数据，视为已经过期，读取后会被重建
+            RedisData<T> redisData = new RedisData<>();
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault()));
+            redisData.setData(readPayload(bytes, new BinaryReader(bytes, 1), type));
+            return redisData;
+        }
+        if (bytes[0] != EXPIRING && bytes[0] != EXPIRING_WITH_COST) {
+            return jsonCodec.decodeLogical(bytes, type);
+        }
+        BinaryReader reader = new BinaryReader(bytes, 1);
+        long expireMillis = reader.readFixedLong();
+        RedisData<T> redisData = new RedisData<>();
+        if (bytes[0] == EXPIRING_WITH_COST) {
+            redisData.setRebuildMillis((long) reader.readFixedInt());
+        }
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        redisData.setData(readPayload(bytes, reader, type));
+        return redisData;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writePayload(Object value, BinaryWriter writer) {
+        BinarySchema<Object> schema = (BinarySchema<Object>) schemasByType.get(value.getClass());
+        if (schema == null) {
+            writer.writeByte(JSON_SCHEMA_ID);
+            writer.writeBytes(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        writer.writeByte(schema.id());
+        schema.write(value, writer);
+    }
+
+    private <T> T readPayload(byte[] bytes, BinaryReader reader, Class<T> type) {
+        int schemaId = reader.readByte();
+        if (schemaId == JSON_SCHEMA_ID) {
+            int offset = reader.position();
+            return JSONUtil.toBean(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), type);
+        }
+        BinarySchema<?> schema = schemasById[schemaId];
+        if (schema == null || schema.type() != type) {
+            throw new IllegalStateException("缓存数据的结构与类型不匹配：" + schemaId + " " + type.getName());
+        }
+        return type.cast(schema.read(reader));
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.utils.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 二进制编码的输入，与BinaryWriter对应
+ *
+ * @Author vita
+ * @Date 2022/12/23 10:45
+ */
+public final class BinaryReader {
+
+    private final byte[] buf;
+    private int pos;
+
+    public BinaryReader(byte[] buf, int offset) {
+        this.buf = buf;
+        this.pos = offset;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public int readByte() {
+        return buf[pos++] & 0xFF;
+    }
+
+    public long readFixedLong() {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    public int readFixedInt() {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (buf[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    public long readVarLong() {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    public long readSignedVarLong() {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public Long readLong() {
+        return readByte() == 0 ? null : readSignedVarLong();
+    }
+
+    public Integer readInt() {
+        return readByte() == 0 ? null : (int) readSignedVarLong();
+    }
+
+    public Double readDouble() {
+        return readByte() == 0 ? null : Double.longBitsToDouble(readFixedLong());
+    }
+
+    public Boolean readBoolean() {
+        int b = readByte();
+        return b == 0 ? null : b == 2;
+    }
+
+    public String readString() {
+        int len = (int) readVarLong();
+        if (len == 0) {
+            return null;
+        }
+        String v = new String(buf, pos, len - 1, StandardCharsets.UTF_8);
+        pos += len - 1;
+        return v;
+    }
+
+    public LocalDateTime readDateTime() {
+        if (readByte() == 0) {
+            return null;
+        }
+        long second = readSignedVarLong();
+        int nano = (int) readVarLong();
+        return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+    }
+}
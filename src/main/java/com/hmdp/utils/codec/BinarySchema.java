@@ -0,0 +1,22 @@
+package com.hmdp.utils.codec;
+
+/**
+ * 某个类型的二进制结构，按固定的字段顺序读写，不使用反射
+ * 字段有增减时必须换一个新的id，旧数据才不会被错误解析
+ *
+ * @Author vita
+ * @Date 2022/12/23 11:00
+ */
+public interface BinarySchema<T> {
+
+    /**
+     * 结构id，写在数据中用于解码时找到对应的结构，1~255
+     */
+    int id();
+
+    Class<T> type();
+
+    void write(T value, BinaryWriter writer);
+
+    T read(BinaryReader reader);
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 二进制编码的输出，整数使用变长编码，字符串带长度前缀
+ * 可为null的字段用第一个字节表示是否为null
+ *
+ * @Author vita
+ * @Date 2022/12/23 10:30
+ */
+public final class BinaryWriter {
+
+    private byte[] buf;
+    private int pos;
+
+    public BinaryWriter(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+        }
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    public void writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * 定长8字节，大端序
+     */
+    public void writeFixedLong(long v) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    /**
+     * 定长4字节，大端序
+     */
+    public void writeFixedInt(int v) {
+        ensure(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    public void writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    /**
+     * zigzag编码，负数也能用较少的字节表示
+     */
+    public void writeSignedVarLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    public void writeLong(Long v) {
+        if (v == null) {
+            writeByte(0);
+            return;
+        }
+        writeByte(1);
+        writeSignedVarLong(v);
+    }
+
+    public void writeInt(Integer v) {
+        writeLong(v == null ? null : v.longValue());
+    }
+
+    public void writeDouble(Double v) {
+        if (v == null) {
+            writeByte(0);
+            return;
+        }
+        writeByte(1);
+        writeFixedLong(Double.doubleToRawLongBits(v));
+    }
+
+    public void writeBoolean(Boolean v) {
+        writeByte(v == null ? 0 : (v ? 2 : 1));
+    }
+
+    /**
+     * 长度+1作为前缀，0代表null
+     */
+    public void writeString(String v) {
+        if (v == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length + 1L);
+        writeBytes(bytes);
+    }
+
+    public void writeDateTime(LocalDateTime v) {
+        if (v == null) {
+            writeByte(0);
+            return;
+        }
+        writeByte(1);
+        writeSignedVarLong(v.toEpochSecond(ZoneOffset.UTC));
+        writeVarLong(v.getNano());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, pos);
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Blog;
+
+/**
+ * @Author vita
+ * @Date 2022/12/23 11:20
+ */
+public class BlogSchema implements BinarySchema<Blog> {
+
+    @Override
+    public int id() {
+        return 2;
+    }
+
+    @Override
+    public Class<Blog> type() {
+        return Blog.class;
+    }
+
+    @Override
+    public void write(Blog blog, BinaryWriter writer) {
+        writer.writeLong(blog.getId());
+        writer.writeLong(blog.getShopId());
+        writer.writeLong(blog.getUserId());
+        writer.writeString(blog.getIcon());
+        writer.writeString(blog.getName());
+        writer.writeBoolean(blog.getIsLike());
+        writer.writeString(blog.getTitle());
+        writer.writeString(blog.getImages());
+        writer.writeString(blog.getContent());
+        writer.writeInt(blog.getLiked());
+        writer.writeInt(blog.getComments());
+        writer.writeDateTime(blog.getCreateTime());
+        writer.writeDateTime(blog.getUpdateTime());
+    }
+
+    @Override
+    public Blog read(BinaryReader reader) {
+        return new Blog()
+                .setId(reader.readLong())
+                .setShopId(reader.readLong())
+                .setUserId(reader.readLong())
+                .setIcon(reader.readString())
+                .setName(reader.readString())
+                .setIsLike(reader.readBoolean())
+                .setTitle(reader.readString())
+                .setImages(reader.readString())
+                .setContent(reader.readString())
+                .setLiked(reader.readInt())
+                .setComments(reader.readInt())
+                .setCreateTime(reader.readDateTime())
+                .setUpdateTime(reader.readDateTime());
+    }
+}
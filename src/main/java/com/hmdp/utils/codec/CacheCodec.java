@@ -0,0 +1,34 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.utils.RedisData;
+
+/**
+ * 缓存值的编解码接口，CacheClient写入和读取redis时使用
+ *
+ * @Author vita
+ * @Date 2022/12/23 10:10
+ */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的数据
+     *
+     * @param expireMillis 逻辑过期时间的毫秒时间戳
+     */
+    default byte[] encodeLogical(Object value, long expireMillis) {
+        return encodeLogical(value, expireMillis, 0L);
+    }
+
+    /**
+     * 编码带逻辑过期时间和重建耗时的数据
+     *
+     * @param rebuildMillis 重建这条数据的耗时，毫秒
+     */
+    byte[] encodeLogical(Object value, long expireMillis, long rebuildMillis);
+
+    <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,50 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.RedisData;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 使用hutool json的编解码，与原来直接存json字符串的格式相同
+ *
+ * @Author vita
+ * @Date 2022/12/23 10:15
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, long expireMillis, long rebuildMillis) {
+        RedisData<Object> redisData = new RedisData<>();
+        redisData.setData(value);
+        redisData.setRebuildMillis(rebuildMillis);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        // 只解析一次json，过期时间等字段按RedisData转换，data单独按type转换
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData<?> raw = json.toBean(RedisData.class);
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(raw.getExpireTime());
+        redisData.setRebuildMillis(raw.getRebuildMillis());
+        redisData.setData(json.getBean("data", type));
+        return redisData;
+    }
+}
@@ -0,0 +1,61 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Shop;
+
+/**
+ * @Author vita
+ * @Date 2022/12/23 11:10
+ */
+public class ShopSchema implements BinarySchema<Shop> {
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public Class<Shop> type() {
+        return Shop.class;
+    }
+
+    @Override
+    public void write(Shop shop, BinaryWriter writer) {
+        writer.writeLong(shop.getId());
+        writer.writeString(shop.getName());
+        writer.writeLong(shop.getTypeId());
+        writer.writeString(shop.getImages());
+        writer.writeString(shop.getArea());
+        writer.writeString(shop.getAddress());
+        writer.writeDouble(shop.getX());
+        writer.writeDouble(shop.getY());
+        writer.writeLong(shop.getAvgPrice());
+        writer.writeInt(shop.getSold());
+        writer.writeInt(shop.getComments());
+        writer.writeInt(shop.getScore());
+        writer.writeString(shop.getOpenHours());
+        writer.writeDateTime(shop.getCreateTime());
+        writer.writeDateTime(shop.getUpdateTime());
+        writer.writeDouble(shop.getDistance());
+    }
+
+    @Override
+    public Shop read(BinaryReader reader) {
+        return new Shop()
+                .setId(reader.readLong())
+                .setName(reader.readString())
+                .setTypeId(reader.readLong())
+                .setImages(reader.readString())
+                .setArea(reader.readString())
+                .setAddress(reader.readString())
+                .setX(reader.readDouble())
+                .setY(reader.readDouble())
+                .setAvgPrice(reader.readLong())
+                .setSold(reader.readInt())
+                .setComments(reader.readInt())
+                .setScore(reader.readInt())
+                .setOpenHours(reader.readString())
+                .setCreateTime(reader.readDateTime())
+                .setUpdateTime(reader.readDateTime())
+                .setDistance(reader.readDouble());
+    }
+}
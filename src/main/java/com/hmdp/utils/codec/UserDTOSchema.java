@@ -0,0 +1,36 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.dto.UserDTO;
+
+/**
+ * @Author vita
+ * @Date 2022/12/26 10:20
+ */
+public class UserDTOSchema implements BinarySchema<UserDTO> {
+
+    @Override
+    public int id() {
+        return 3;
+    }
+
+    @Override
+    public Class<UserDTO> type() {
+        return UserDTO.class;
+    }
+
+    @Override
+    public void write(UserDTO user, BinaryWriter writer) {
+        writer.writeLong(user.getId());
+        writer.writeString(user.getNickName());
+        writer.writeString(user.getIcon());
+    }
+
+    @Override
+    public UserDTO read(BinaryReader reader) {
+        UserDTO user = new UserDTO();
+        user.setId(reader.readLong());
+        user.setNickName(reader.readString());
+        user.setIcon(reader.readString());
+        return user;
+    }
+}
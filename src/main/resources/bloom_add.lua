@@ -0,0 +1,13 @@
+-- 向布隆过滤器写入一个id对应的位
+-- KEYS[1]为位图，KEYS[2]为过滤器参数，两个key使用相同的hash tag，在同一个slot
+-- ARGV[1]、ARGV[2]为写入方使用的位数、哈希函数个数，之后为要写入的位
+-- 参数与redis中的不一致（其他节点已经重建过滤器）时不写入，返回0
+
+local meta = redis.call("hmget", KEYS[2], "bits", "hashes")
+if (meta[1] ~= ARGV[1] or meta[2] ~= ARGV[2]) then
+    return 0
+end
+for i = 3, #ARGV do
+    redis.call("setbit", KEYS[1], ARGV[i], 1)
+end
+return 1
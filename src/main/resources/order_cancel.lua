@@ -0,0 +1,22 @@
+-- 归还已取消订单的库存，并移除已下单用户，让用户可以再次购买
+-- KEYS[1]为已取消订单的集合，KEYS[2]为已下单用户，KEYS[3]为库存，KEYS[4]为秒杀券元数据
+-- 分片模式下KEYS都是用户所在分片的key，在同一个slot，不包含全局的支付截止时间zset
+-- ARGV[1]为已取消订单集合的过期时间（秒），之后每两个参数为一个订单的 orderId userId
+-- 只处理第一次加入已取消集合的订单，重复执行不会多归还库存，返回归还的数量
+-- removeBuyer在seckill_lib.lua中，存储方式与seckill.lua相同
+
+local meta = redis.call("hmget", KEYS[4], "dedupe", "buckets")
+local dedupe, buckets = buyerStore(meta[1], meta[2])
+
+local count = 0
+for i = 2, #ARGV, 2 do
+    if (redis.call("sadd", KEYS[1], ARGV[i]) == 1) then
+        removeBuyer(KEYS[2], dedupe, buckets, ARGV[i + 1])
+        count = count + 1
+    end
+end
+if (count > 0) then
+    redis.call("expire", KEYS[1], ARGV[1])
+    redis.call("incrby", KEYS[3], count)
+end
+return count
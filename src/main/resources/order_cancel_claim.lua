@@ -0,0 +1,15 @@
+-- 认领已到期的订单，把截止时间推迟到ARGV[2]，认领后节点宕机的订单到时会再次被处理
+-- KEYS[1]为订单支付截止时间的zset，ARGV[1]为当前时间，ARGV[2]为新的截止时间，之后为订单id
+-- 多个节点同时认领时只有一个能拿到，返回认领到的订单id
+local deadlineKey = KEYS[1]
+local now = tonumber(ARGV[1])
+
+local claimed = {}
+for i = 3, #ARGV do
+    local deadline = redis.call("zscore", deadlineKey, ARGV[i])
+    if (deadline and tonumber(deadline) <= now) then
+        redis.call("zadd", deadlineKey, ARGV[2], ARGV[i])
+        table.insert(claimed, ARGV[i])
+    end
+end
+return claimed
@@ -1,23 +1,72 @@
+-- TIME的结果每次不同，之后还有写命令，按命令而不是按脚本复制
+redis.replicate_commands()
+-- 令牌桶take、已下单用户isBuyer/addBuyer等函数在seckill_lib.lua中，加载时拼接在脚本之前
+
 local voucherId = ARGV[1]
 local orderId = ARGV[2]
 local userId = ARGV[3]
+-- 秒杀券令牌桶每秒的令牌数为剩余库存的倍数
+local stockMultiplier = tonumber(ARGV[4])
+local userRate = tonumber(ARGV[5])
+local userBurst = tonumber(ARGV[6])
+local statusTtl = tonumber(ARGV[7])
 
 local orderKey = KEYS[1] .. voucherId
 local stockKey = KEYS[2] .. voucherId
+local streamKey = KEYS[3]
+local metaKey = KEYS[4] .. voucherId
+local voucherBucket = KEYS[5] .. voucherId
+local userBucket = KEYS[5] .. voucherId .. ":" .. userId
+local statusKey = KEYS[6] .. orderId
+
+-- 使用redis服务器的时间
+local now = serverMillis()
+
+-- 秒杀时间，没有元数据的旧秒杀券不检查
+local meta = redis.call("hmget", metaKey, "begin", "end", "dedupe", "buckets")
+local dedupe, buckets = buyerStore(meta[3], meta[4])
+if (meta[1]) then
+    if (now < tonumber(meta[1])) then
+        -- 秒杀未开始 返回3
+        return 3
+    end
+    if (now > tonumber(meta[2])) then
+        -- 秒杀已结束 返回4
+        return 4
+    end
+end
 
-if (tonumber(redis.call("get", stockKey)) <= 0) then
+local stock = tonumber(redis.call("get", stockKey))
+if (stock <= 0) then
     -- 库存不足 返回1
     return 1
 end
 
-if (redis.call("sismember", orderKey, userId) == 1) then
+-- 先扣用户的令牌，同一用户的连续请求不会占用秒杀券的令牌
+if (not take(userBucket, userRate, userBurst, now)) then
+    -- 用户请求过快 返回6
+    return 6
+end
+if (not take(voucherBucket, stock * stockMultiplier, stock * stockMultiplier, now)) then
+    -- 秒杀券请求过多 返回5
+    return 5
+end
+
+-- 一人一单，订单表也按一人一单处理
+if (isBuyer(orderKey, dedupe, buckets, userId)) then
     -- 重复下单 返回2
     return 2
 end
 -- 扣库存
 redis.call("incrby", stockKey, -1)
 -- 将用户保存到已下单集合中
-redis.call("sadd", orderKey, userId)
+addBuyer(orderKey, dedupe, buckets, userId)
+-- 发送订单消息到stream，与扣库存在同一个脚本中执行，不会出现扣了库存却丢失订单的情况
+-- XADD stream.orders * userId 1 voucherId 2 id 3
+redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+-- 订单状态，消费者创建订单后更新
+redis.call("hset", statusKey, "status", "QUEUED", "userId", userId, "voucherId", voucherId)
+redis.call("expire", statusKey, statusTtl)
 
 -- 成功 返回0
 return 0
\ No newline at end of file
@@ -0,0 +1,12 @@
+-- 从库存中租出一段给当前节点，返回租到的数量，库存不足时返回0
+local stockKey = KEYS[1]
+local leaseSize = tonumber(ARGV[1])
+
+local stock = tonumber(redis.call("get", stockKey) or "0")
+if (stock <= 0) then
+    return 0
+end
+local n = math.min(stock, leaseSize)
+-- DECRBY seckill:stock:1 50，不足一段时租走剩余的全部库存，不会扣成负数
+redis.call("decrby", stockKey, n)
+return n
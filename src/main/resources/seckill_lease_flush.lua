@@ -0,0 +1,31 @@
+-- 批量提交节点在租约内卖出的订单
+-- ARGV[1]为voucherId，ARGV[2]为订单状态的过期时间，之后每两个参数为一个订单的 userId orderId
+-- 用户已在其他节点下过单时不写入stream，订单状态为失败，返回这些订单的id
+-- 已经有状态的订单（重放订单日志时宕机前已提交过的）直接跳过
+-- addBuyer在seckill_lib.lua中，与seckill.lua相同
+
+local voucherId = ARGV[1]
+local statusTtl = tonumber(ARGV[2])
+
+local orderKey = KEYS[1]
+local streamKey = KEYS[2]
+local meta = redis.call("hmget", KEYS[4], "dedupe", "buckets")
+local dedupe, buckets = buyerStore(meta[1], meta[2])
+
+local duplicates = {}
+for i = 3, #ARGV, 2 do
+    local userId = ARGV[i]
+    local orderId = ARGV[i + 1]
+    local statusKey = KEYS[3] .. orderId
+    if (redis.call("exists", statusKey) == 0) then
+        if (addBuyer(orderKey, dedupe, buckets, userId)) then
+            redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+            redis.call("hset", statusKey, "status", "QUEUED", "userId", userId, "voucherId", voucherId)
+        else
+            redis.call("hset", statusKey, "status", "FAILED", "reason", "重复下单", "userId", userId, "voucherId", voucherId)
+            table.insert(duplicates, orderId)
+        end
+        redis.call("expire", statusKey, statusTtl)
+    end
+end
+return duplicates
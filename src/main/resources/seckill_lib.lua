@@ -0,0 +1,75 @@
+-- 秒杀脚本共用的函数，加载脚本时拼接在各脚本之前（SeckillScripts），不单独执行
+-- BUYERS_SET BUYERS_BITMAP BUYERS_CHUNK CHUNK_SEPARATOR 由SeckillScripts按SeckillBuyers中的常量生成
+
+-- 令牌桶，rate为每秒放入的令牌数，burst为桶的容量，rate不大于0时不限流
+-- 拒绝时不写入，被限流的请求只有读操作
+local function take(key, rate, burst, now)
+    if (rate <= 0) then
+        return true
+    end
+    local bucket = redis.call("hmget", key, "tokens", "ts")
+    local tokens = tonumber(bucket[1]) or burst
+    local ts = tonumber(bucket[2]) or now
+    tokens = math.min(burst, tokens + math.max(now - ts, 0) * rate / 1000)
+    if (tokens < 1) then
+        return false
+    end
+    redis.call("hset", key, "tokens", tokens - 1, "ts", now)
+    -- 桶装满之后就不再需要保留
+    redis.call("pexpire", key, math.ceil(burst / rate * 1000) + 1000)
+    return true
+end
+
+-- redis服务器的当前时间，毫秒
+local function serverMillis()
+    local time = redis.call("time")
+    return tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+
+-- 已下单用户的存储方式（秒杀券元数据中的dedupe），与SeckillBuyers相同：
+-- set 用户id字符串的集合；bitmap 以用户id为偏移量的位图；
+-- chunk 按 用户id % buckets 分成多个小hash（orderKey:<桶>），字段为 用户id / buckets，每个hash保持紧凑编码
+local function chunkOf(orderKey, buckets, userId)
+    local id = tonumber(userId)
+    return orderKey .. CHUNK_SEPARATOR .. (id % buckets), math.floor(id / buckets)
+end
+
+local function isBuyer(orderKey, dedupe, buckets, userId)
+    if (dedupe == BUYERS_BITMAP) then
+        return redis.call("getbit", orderKey, userId) == 1
+    end
+    if (dedupe == BUYERS_CHUNK) then
+        local key, field = chunkOf(orderKey, buckets, userId)
+        return redis.call("hexists", key, field) == 1
+    end
+    return redis.call("sismember", orderKey, userId) == 1
+end
+
+-- 记录已下单用户，返回是否为新记录
+local function addBuyer(orderKey, dedupe, buckets, userId)
+    if (dedupe == BUYERS_BITMAP) then
+        return redis.call("setbit", orderKey, userId, 1) == 0
+    end
+    if (dedupe == BUYERS_CHUNK) then
+        local key, field = chunkOf(orderKey, buckets, userId)
+        return redis.call("hsetnx", key, field, 1) == 1
+    end
+    return redis.call("sadd", orderKey, userId) == 1
+end
+
+-- 移除已下单用户，让用户可以再次购买
+local function removeBuyer(orderKey, dedupe, buckets, userId)
+    if (dedupe == BUYERS_BITMAP) then
+        redis.call("setbit", orderKey, userId, 0)
+    elseif (dedupe == BUYERS_CHUNK) then
+        local key, field = chunkOf(orderKey, buckets, userId)
+        redis.call("hdel", key, field)
+    else
+        redis.call("srem", orderKey, userId)
+    end
+end
+
+-- 秒杀券元数据中已下单用户的存储方式，没有元数据的旧秒杀券为set
+local function buyerStore(dedupe, buckets)
+    return dedupe or BUYERS_SET, tonumber(buckets or "1")
+end
@@ -0,0 +1,27 @@
+-- 租约模式下的令牌桶，与seckill.lua中的限流相同（seckill_lib.lua中的take），在本地卖出之前执行
+-- TIME的结果每次不同，之后还有写命令，按命令而不是按脚本复制
+redis.replicate_commands()
+
+local stockKey = KEYS[1]
+local voucherBucket = KEYS[2]
+local userBucket = KEYS[3]
+local stockMultiplier = tonumber(ARGV[1])
+local userRate = tonumber(ARGV[2])
+local userBurst = tonumber(ARGV[3])
+-- 本节点租约中还没卖出的库存，redis中的库存已经扣掉了租出的部分
+local leased = tonumber(ARGV[4])
+
+local now = serverMillis()
+
+-- 剩余库存为0时桶的速率为0，不限流，由租约返回库存不足
+local stock = math.max(tonumber(redis.call("get", stockKey) or "0"), 0) + leased
+
+if (not take(userBucket, userRate, userBurst, now)) then
+    -- 用户请求过快 返回6
+    return 6
+end
+if (not take(voucherBucket, stock * stockMultiplier, stock * stockMultiplier, now)) then
+    -- 秒杀券请求过多 返回5
+    return 5
+end
+return 0
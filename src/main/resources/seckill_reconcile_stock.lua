@@ -0,0 +1,8 @@
+-- 对账修正库存，库存与读取时相同（期间没有新的下单）才写入数据库中的库存
+local stockKey = KEYS[1]
+
+if (redis.call("get", stockKey) ~= ARGV[1]) then
+    return 0
+end
+redis.call("set", stockKey, ARGV[2])
+return 1
@@ -0,0 +1,55 @@
+-- 分片模式下在用户的主分片上执行，所有key都在同一个slot
+redis.replicate_commands()
+-- 共用的函数在seckill_lib.lua中
+
+local voucherId = ARGV[1]
+local orderId = ARGV[2]
+local userId = ARGV[3]
+local stockMultiplier = tonumber(ARGV[4])
+local userRate = tonumber(ARGV[5])
+local userBurst = tonumber(ARGV[6])
+
+local orderKey = KEYS[1]
+local stockKey = KEYS[2]
+local streamKey = KEYS[3]
+local metaKey = KEYS[4]
+local voucherBucket = KEYS[5]
+local userBucket = KEYS[6]
+
+local now = serverMillis()
+
+-- 秒杀时间，与seckill.lua相同
+local meta = redis.call("hmget", metaKey, "begin", "end", "dedupe", "buckets")
+local dedupe, buckets = buyerStore(meta[3], meta[4])
+if (meta[1]) then
+    if (now < tonumber(meta[1])) then
+        return 3
+    end
+    if (now > tonumber(meta[2])) then
+        return 4
+    end
+end
+
+-- 令牌桶与seckill.lua相同，秒杀券的令牌桶按分片的剩余库存计算，主分片库存不足时不限流
+local stock = tonumber(redis.call("get", stockKey) or "0")
+if (not take(userBucket, userRate, userBurst, now)) then
+    return 6
+end
+if (stock > 0 and not take(voucherBucket, stock * stockMultiplier, stock * stockMultiplier, now)) then
+    return 5
+end
+
+if (isBuyer(orderKey, dedupe, buckets, userId)) then
+    -- 重复下单 返回2
+    return 2
+end
+-- 先记录用户，去其他分片扣库存期间同一用户的请求也会被拦住
+addBuyer(orderKey, dedupe, buckets, userId)
+
+if (stock > 0) then
+    redis.call("incrby", stockKey, -1)
+    redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+    return 0
+end
+-- 主分片库存不足 返回1，由调用方尝试其他分片，全部不足时移除用户
+return 1
@@ -0,0 +1,15 @@
+-- 主分片库存不足时在其他分片上扣库存，已下单用户已经记录在主分片中
+local voucherId = ARGV[1]
+local orderId = ARGV[2]
+local userId = ARGV[3]
+
+local stockKey = KEYS[1]
+local streamKey = KEYS[2]
+
+if (tonumber(redis.call("get", stockKey) or "0") <= 0) then
+    -- 库存不足 返回1
+    return 1
+end
+redis.call("incrby", stockKey, -1)
+redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId)
+return 0
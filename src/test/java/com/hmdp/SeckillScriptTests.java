@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import cn.hutool.core.collection.ListUtil;
+import com.hmdp.utils.SeckillScripts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 秒杀脚本的测试，需要本地的redis
+ * 订单写入单独的测试stream，不会被订单消费者处理
+ *
+ * @Author vita
+ * @Date 2023/01/16 11:00
+ */
+@SpringBootTest
+class SeckillScriptTests {
+
+    private static final long VOUCHER_ID = 900_000_201L;
+    private static final String STREAM_KEY = SECKILL_STREAM_KEY + ".test";
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = SeckillScripts.load("seckill.lua", Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private long orderId = System.currentTimeMillis() << 20;
+
+    @AfterEach
+    void tearDown() {
+        stringRedisTemplate.delete(ListUtil.of(SECKILL_ORDER_KEY + VOUCHER_ID, SECKILL_STOCK_KEY + VOUCHER_ID,
+                SECKILL_META_KEY + VOUCHER_ID, STREAM_KEY));
+    }
+
+    private void init(int stock, long beginOffsetMillis, long endOffsetMillis) {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(stock));
+        Map<String, String> meta = new HashMap<>();
+        meta.put("begin", String.valueOf(now + beginOffsetMillis));
+        meta.put("end", String.valueOf(now + endOffsetMillis));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + VOUCHER_ID, meta);
+    }
+
+    /**
+     * 不限流执行秒杀脚本
+     */
+    private int seckill(long userId) {
+        long id = ++orderId;
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                ListUtil.of(SECKILL_ORDER_KEY, SECKILL_STOCK_KEY, STREAM_KEY, SECKILL_META_KEY, SECKILL_RATE_KEY,
+                        ORDER_STATUS_KEY),
+                String.valueOf(VOUCHER_ID), String.valueOf(id), String.valueOf(userId), "0", "0", "0", "60");
+        stringRedisTemplate.delete(ORDER_STATUS_KEY + id);
+        return result.intValue();
+    }
+
+    private long stock() {
+        return Long.parseLong(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+    }
+
+    @Test
+    void rejectsBeforeBegin() {
+        init(10, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(2));
+        assertEquals(3, seckill(1L));
+        assertEquals(10, stock());
+    }
+
+    @Test
+    void rejectsAfterEnd() {
+        init(10, -TimeUnit.MINUTES.toMillis(2), -TimeUnit.MINUTES.toMillis(1));
+        assertEquals(4, seckill(1L));
+        assertEquals(10, stock());
+    }
+
+    @Test
+    void onePerUser() {
+        init(10, -TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+        assertEquals(0, seckill(1L));
+        assertEquals(2, seckill(1L));
+        assertEquals(0, seckill(2L));
+        assertEquals(8, stock());
+        assertEquals(2, (long) stringRedisTemplate.opsForStream().size(STREAM_KEY));
+    }
+
+    @Test
+    void rejectsWhenSoldOut() {
+        init(1, -TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+        assertEquals(0, seckill(1L));
+        assertEquals(1, seckill(2L));
+        assertEquals(0, stock());
+        assertEquals(1, (long) stringRedisTemplate.opsForStream().size(STREAM_KEY));
+    }
+}
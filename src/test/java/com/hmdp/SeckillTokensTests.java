@@ -0,0 +1,88 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.SeckillTokens;
+import com.hmdp.utils.SoldOutFlags;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_TOKEN_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀令牌签发时间窗口的测试，需要本地的redis
+ * 秒杀券的开始、结束时间直接写入本地缓存，不查询数据库
+ *
+ * @Author vita
+ * @Date 2023/01/16 12:00
+ */
+@SpringBootTest
+class SeckillTokensTests {
+
+    private static final long VOUCHER_ID = 900_000_301L;
+    private static final long USER_ID = 1L;
+
+    @Resource
+    private SeckillTokens seckillTokens;
+    @Resource
+    private SoldOutFlags soldOutFlags;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    void tearDown() {
+        times().remove(VOUCHER_ID);
+        soldOutFlags.clear(VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_TOKEN_KEY + VOUCHER_ID + ":" + USER_ID);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, long[]> times() {
+        return (Map<Long, long[]>) ReflectionTestUtils.getField(seckillTokens, "times");
+    }
+
+    private Result issue(long beginOffsetMillis, long endOffsetMillis) {
+        long now = System.currentTimeMillis();
+        times().put(VOUCHER_ID, new long[]{now + beginOffsetMillis, now + endOffsetMillis});
+        return seckillTokens.issue(VOUCHER_ID, USER_ID);
+    }
+
+    @Test
+    void issuesBeforeBegin() {
+        Result result = issue(TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(10));
+        assertTrue(result.getSuccess());
+        assertTrue(seckillTokens.verify(VOUCHER_ID, USER_ID, (String) result.getData()));
+        assertFalse(seckillTokens.verify(VOUCHER_ID, USER_ID + 1, (String) result.getData()));
+    }
+
+    @Test
+    void rejectsTooEarly() {
+        assertFalse(issue(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(2)).getSuccess());
+    }
+
+    @Test
+    void issuesAfterBegin() {
+        // 秒杀已经开始但还没有结束，开始后才来的用户也可以获取令牌
+        Result result = issue(-TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10));
+        assertTrue(result.getSuccess());
+        assertTrue(seckillTokens.verify(VOUCHER_ID, USER_ID, (String) result.getData()));
+    }
+
+    @Test
+    void rejectsAfterEnd() {
+        assertFalse(issue(-TimeUnit.MINUTES.toMillis(2), -TimeUnit.MINUTES.toMillis(1)).getSuccess());
+    }
+
+    @Test
+    void rejectsSoldOut() {
+        soldOutFlags.markSoldOutLocally(VOUCHER_ID);
+        assertFalse(issue(-TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10)).getSuccess());
+    }
+}
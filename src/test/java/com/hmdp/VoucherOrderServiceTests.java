@@ -0,0 +1,114 @@
+package com.hmdp;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 批量创建订单的测试，需要本地的mysql与redis
+ *
+ * @Author vita
+ * @Date 2023/01/16 10:00
+ */
+@SpringBootTest
+class VoucherOrderServiceTests {
+
+    /**
+     * 测试使用的秒杀券id，不会与正常数据冲突
+     */
+    private static final long VOUCHER_ID = 900_000_101L;
+    private static final int STOCK = 10;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    private long orderId = System.currentTimeMillis() << 20;
+
+    @BeforeEach
+    void setUp() {
+        seckillVoucherService.save(new SeckillVoucher()
+                .setVoucherId(VOUCHER_ID)
+                .setStock(STOCK)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusDays(1)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        voucherOrderService.lambdaUpdate().eq(VoucherOrder::getVoucherId, VOUCHER_ID).remove();
+        seckillVoucherService.removeById(VOUCHER_ID);
+    }
+
+    private VoucherOrder order(long userId) {
+        return new VoucherOrder().setId(++orderId).setUserId(userId).setVoucherId(VOUCHER_ID);
+    }
+
+    private int stock() {
+        return seckillVoucherService.getById(VOUCHER_ID).getStock();
+    }
+
+    private int orders(long userId) {
+        return voucherOrderService.lambdaQuery()
+                .eq(VoucherOrder::getVoucherId, VOUCHER_ID)
+                .eq(VoucherOrder::getUserId, userId)
+                .count();
+    }
+
+    @Test
+    void redeliveredBatchIsWrittenOnce() {
+        List<VoucherOrder> batch = Arrays.asList(order(1L), order(2L));
+        assertEquals(0, voucherOrderService.createVoucherOrders(batch).size());
+        // 重复投递同一批消息，订单id已存在
+        assertEquals(0, voucherOrderService.createVoucherOrders(batch).size());
+        assertEquals(STOCK - 2, stock());
+        assertEquals(1, orders(1L));
+        assertEquals(1, orders(2L));
+    }
+
+    @Test
+    void sameUserInOneBatchIsWrittenOnce() {
+        VoucherOrder first = order(1L);
+        VoucherOrder second = order(1L);
+        List<VoucherOrder> duplicates = voucherOrderService.createVoucherOrders(Arrays.asList(first, second));
+        assertEquals(Collections.singletonList(second), duplicates);
+        assertEquals(STOCK - 1, stock());
+        assertEquals(1, orders(1L));
+    }
+
+    @Test
+    void userWithExistingOrderIsRejected() {
+        voucherOrderService.createVoucherOrders(Collections.singletonList(order(1L)));
+        // 对账重新投递等情况下，同一个用户的另一个订单id
+        VoucherOrder again = order(1L);
+        assertEquals(Collections.singletonList(again),
+                voucherOrderService.createVoucherOrders(Arrays.asList(again, order(2L))));
+        assertEquals(STOCK - 2, stock());
+        assertEquals(1, orders(1L));
+    }
+
+    @Test
+    void userWithCancelledOrderCanBuyAgain() {
+        VoucherOrder first = order(1L);
+        voucherOrderService.createVoucherOrders(Collections.singletonList(first));
+        voucherOrderService.cancelUnpaidOrders(Collections.singletonList(first.getId()));
+        assertEquals(STOCK, stock());
+        assertEquals(0, voucherOrderService.createVoucherOrders(Collections.singletonList(order(1L))).size());
+        assertEquals(STOCK - 1, stock());
+        assertEquals(2, orders(1L));
+    }
+}
@@ -0,0 +1,137 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.RedisData;
+import com.hmdp.utils.codec.BinaryCacheCodec;
+import com.hmdp.utils.codec.BlogSchema;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
+import com.hmdp.utils.codec.ShopSchema;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码的基准测试：hutool json 与 二进制编码
+ * 运行main方法，先打印每种数据编码后的字节数，再输出吞吐量
+ *
+ * @Author vita
+ * @Date 2022/12/23 15:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "binary"})
+    private String codecName;
+
+    private CacheCodec codec;
+    private Shop shop;
+    private Blog blog;
+    private long expireMillis;
+    private byte[] shopBytes;
+    private byte[] blogBytes;
+    private byte[] logicalShopBytes;
+
+    @Setup
+    public void setup() {
+        codec = codecOf(codecName);
+        shop = sampleShop();
+        blog = sampleBlog();
+        expireMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        shopBytes = codec.encode(shop);
+        blogBytes = codec.encode(blog);
+        logicalShopBytes = codec.encodeLogical(shop, expireMillis);
+    }
+
+    @Benchmark
+    public byte[] encodeShop() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decodeShop() {
+        return codec.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeBlog() {
+        return codec.encode(blog);
+    }
+
+    @Benchmark
+    public Blog decodeBlog() {
+        return codec.decode(blogBytes, Blog.class);
+    }
+
+    @Benchmark
+    public byte[] encodeLogicalShop() {
+        return codec.encodeLogical(shop, expireMillis);
+    }
+
+    @Benchmark
+    public RedisData<Shop> decodeLogicalShop() {
+        return codec.decodeLogical(logicalShopBytes, Shop.class);
+    }
+
+    private static CacheCodec codecOf(String name) {
+        return "json".equals(name) ? new JsonCacheCodec() : new BinaryCacheCodec(new ShopSchema(), new BlogSchema());
+    }
+
+    private static Shop sampleShop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static Blog sampleBlog() {
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>\\r\\n男朋友给不了的浪漫要学会自己给🍒<br/>\\r\\n无法重来的一生·尽量快乐.")
+                .setLiked(3)
+                .setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        long expireMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        System.out.printf("%-8s %10s %10s %18s%n", "codec", "Shop", "Blog", "RedisData<Shop>");
+        for (String name : new String[]{"json", "binary"}) {
+            CacheCodec codec = codecOf(name);
+            System.out.printf("%-8s %10d %10d %18d%n", name,
+                    codec.encode(sampleShop()).length,
+                    codec.encode(sampleBlog()).length,
+                    codec.encodeLogical(sampleShop(), expireMillis).length);
+        }
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
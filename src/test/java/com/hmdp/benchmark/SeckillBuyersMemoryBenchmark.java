@@ -0,0 +1,92 @@
+package com.hmdp.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 已下单用户三种存储方式的内存对比，需要本地的redis，手动运行
+ * 分别写入 稠密 与 稀疏 两种分布的用户id，用MEMORY USAGE统计每个用户占用的字节数，结束后删除测试数据
+ *
+ * @Author vita
+ * @Date 2023/01/11 10:00
+ */
+@SpringBootTest
+class SeckillBuyersMemoryBenchmark {
+
+    private static final String KEY_PREFIX = "benchmark:buyers:";
+    private static final int BUYERS = 100_000;
+    /**
+     * 与SeckillBuyers中每个桶期望的用户数相同
+     */
+    private static final int CHUNK_SIZE = 64;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void compareMemory() {
+        // 稠密：用户id集中在 [0, 2*BUYERS)，稀疏：用户id分布在 [0, 2^31)
+        compare("dense", userIds(BUYERS * 2L));
+        compare("sparse", userIds(1L << 31));
+    }
+
+    private static List<Long> userIds(long bound) {
+        Random random = new Random(42);
+        List<Long> userIds = new ArrayList<>(BUYERS);
+        for (int i = 0; i < BUYERS; i++) {
+            userIds.add((long) (random.nextDouble() * bound));
+        }
+        return userIds;
+    }
+
+    private void compare(String distribution, List<Long> userIds) {
+        int buckets = (BUYERS + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        String setKey = KEY_PREFIX + "set";
+        String bitmapKey = KEY_PREFIX + "bitmap";
+        String chunkKey = KEY_PREFIX + "chunk:";
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : userIds) {
+                    connection.sAdd(bytes(setKey), bytes(userId.toString()));
+                    connection.setBit(bytes(bitmapKey), userId, true);
+                    connection.hSetNX(bytes(chunkKey + userId % buckets), bytes(String.valueOf(userId / buckets)), bytes("1"));
+                }
+                return null;
+            });
+            long set = memoryUsage(setKey);
+            long bitmap = memoryUsage(bitmapKey);
+            long chunk = 0;
+            for (int i = 0; i < buckets; i++) {
+                chunk += memoryUsage(chunkKey + i);
+            }
+            System.out.printf("%-6s set: %10d bytes %6.1f/buyer, bitmap: %10d bytes %6.1f/buyer, chunk: %10d bytes %6.1f/buyer%n",
+                    distribution, set, (double) set / BUYERS, bitmap, (double) bitmap / BUYERS, chunk, (double) chunk / BUYERS);
+        } finally {
+            List<String> keys = new ArrayList<>();
+            keys.add(setKey);
+            keys.add(bitmapKey);
+            for (int i = 0; i < buckets; i++) {
+                keys.add(chunkKey + i);
+            }
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    private long memoryUsage(String key) {
+        Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("MEMORY", bytes("USAGE"), bytes(key), bytes("SAMPLES"), bytes("0")));
+        return usage == null ? 0 : (Long) usage;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量写入订单的基准测试，需要本地的mysql与redis，手动运行
+ * 每种批次大小写入相同数量的订单，输出每秒写入的订单数，结束后删除测试数据
+ * 每个用户只能下一单，每种批次大小使用不同的用户，避免后面的批次全部被判定为重复订单
+ *
+ * @Author vita
+ * @Date 2023/01/04 10:00
+ */
+@SpringBootTest
+class VoucherOrderBatchBenchmark {
+
+    /**
+     * 测试使用的秒杀券id，不会与正常数据冲突
+     */
+    private static final long VOUCHER_ID = 900_000_001L;
+    private static final int TOTAL = 5000;
+    private static final int[] BATCH_SIZES = {1, 10, 50, 100, 500, 1000};
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Test
+    void createVoucherOrders() {
+        SeckillVoucher voucher = new SeckillVoucher()
+                .setVoucherId(VOUCHER_ID)
+                .setStock(Integer.MAX_VALUE)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(voucher);
+        long orderId = System.currentTimeMillis() << 20;
+        try {
+            for (int round = 0; round < BATCH_SIZES.length; round++) {
+                int batchSize = BATCH_SIZES[round];
+                long firstUserId = (long) round * TOTAL;
+                long begin = System.nanoTime();
+                for (int i = 0; i < TOTAL; i += batchSize) {
+                    List<VoucherOrder> batch = new ArrayList<>(batchSize);
+                    for (int j = i; j < Math.min(i + batchSize, TOTAL); j++) {
+                        batch.add(new VoucherOrder()
+                                .setId(++orderId)
+                                .setUserId(firstUserId + j)
+                                .setVoucherId(VOUCHER_ID));
+                    }
+                    voucherOrderService.createVoucherOrders(batch);
+                }
+                double seconds = (System.nanoTime() - begin) / 1e9;
+                System.out.printf("batch size %4d: %8.0f orders/s%n", batchSize, TOTAL / seconds);
+            }
+        } finally {
+            voucherOrderService.lambdaUpdate().eq(VoucherOrder::getVoucherId, VOUCHER_ID).remove();
+            seckillVoucherService.removeById(VOUCHER_ID);
+        }
+    }
+}